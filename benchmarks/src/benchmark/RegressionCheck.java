@@ -0,0 +1,128 @@
+package benchmark;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Runs benchmarks and compares their scores with a baseline saved by a previous run. Exits with status 1 if any
+ * benchmark got slower than the baseline by more than the tolerance, so it can guard changes on a build machine.
+ * Benchmarks do not start JavaFX, so they run headless.
+ * </p>
+ * <p>
+ * Usage: RegressionCheck [--update] [--baseline file] [--tolerance percent] [benchmark regex]
+ * <ul>
+ * <li>--update - saves scores of this run as the new baseline instead of comparing,</li>
+ * <li>--baseline - file with baseline scores, benchmarks/baseline.properties by default,</li>
+ * <li>--tolerance - allowed slowdown in percent, 15 by default,</li>
+ * <li>regex - runs only matching benchmarks, all by default.</li>
+ * </ul>
+ * Baseline is a properties file mapping benchmark name and parameters to average time. Baseline recorded on one
+ * machine is meaningless on another, so it should be recorded with --update on the machine running the check.
+ * </p>
+ */
+public class RegressionCheck {
+    private static final String DEFAULT_BASELINE = "benchmarks" + File.separator + "baseline.properties";
+    private static final double DEFAULT_TOLERANCE = 15;
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        boolean update = false;
+        String baselinePath = DEFAULT_BASELINE;
+        double tolerance = DEFAULT_TOLERANCE;
+        String include = ".*";
+        for (int i = 0; i < args.length; i++) {
+            if ("--update".equals(args[i])) update = true;
+            else if ("--baseline".equals(args[i]) && i + 1 < args.length) baselinePath = args[++i];
+            else if ("--tolerance".equals(args[i]) && i + 1 < args.length) tolerance = Double.parseDouble(args[++i]);
+            else include = args[i];
+        }
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .jvmArgsAppend("-Djava.awt.headless=true")
+                .build();
+        Map<String, Double> scores = scoresOf(new Runner(options).run());
+        File baselineFile = new File(baselinePath);
+        if (update || !baselineFile.exists()) {
+            save(scores, baselineFile);
+            System.out.println("Baseline of " + scores.size() + " benchmarks saved to " + baselineFile);
+            return;
+        }
+        if (!compare(scores, load(baselineFile), tolerance)) System.exit(1);
+    }
+
+    /**
+     * <p>
+     * Prints comparison of every benchmark with its baseline.
+     * </p>
+     *
+     * @return false if any benchmark is slower than allowed
+     */
+    private static boolean compare(Map<String, Double> scores, Map<String, Double> baseline, double tolerance) {
+        boolean passed = true;
+        for (Map.Entry<String, Double> entry : scores.entrySet()) {
+            Double expected = baseline.get(entry.getKey());
+            if (expected == null) {
+                System.out.println(String.format("NEW  %-90s %14.3f", entry.getKey(), entry.getValue()));
+                continue;
+            }
+            double change = (entry.getValue() - expected) / expected * 100;
+            boolean regressed = change > tolerance;
+            if (regressed) passed = false;
+            System.out.println(String.format("%-4s %-90s %14.3f %+7.1f%%", regressed ? "SLOW" : "OK",
+                    entry.getKey(), entry.getValue(), change));
+        }
+        System.out.println(passed ? "No regressions" : "Regressions over " + tolerance + "% found");
+        return passed;
+    }
+
+    /**
+     * @return average time of every benchmark, keyed by benchmark name and parameters
+     */
+    private static Map<String, Double> scoresOf(Collection<RunResult> results) {
+        Map<String, Double> scores = new TreeMap<>();
+        for (RunResult result : results) {
+            StringBuilder key = new StringBuilder(result.getParams().getBenchmark());
+            for (String name : result.getParams().getParamsKeys())
+                key.append(':').append(name).append('=').append(result.getParams().getParam(name));
+            key.append('[').append(result.getPrimaryResult().getScoreUnit()).append(']');
+            scores.put(key.toString(), result.getPrimaryResult().getScore());
+        }
+        return scores;
+    }
+
+    private static Map<String, Double> load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        Map<String, Double> scores = new TreeMap<>();
+        for (String key : properties.stringPropertyNames()) scores.put(key, Double.valueOf(properties.getProperty(key)));
+        return scores;
+    }
+
+    private static void save(Map<String, Double> scores, File file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> entry : scores.entrySet())
+            properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) throw new IOException("Cannot create " + parent);
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "Benchmark baseline (average time)");
+        }
+    }
+}
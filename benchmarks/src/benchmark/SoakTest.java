@@ -0,0 +1,336 @@
+package benchmark;
+
+import engine.ConversationSnapshot;
+import engine.EngineListener;
+import engine.MainEngine;
+import engine.Metrics;
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+import net.PhoneSimulator;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Soak test of the server: runs the engine headless and a simulated phone in the same process, then streams messages
+ * in both directions for the requested time, optionally breaking the connection on schedule.
+ * </p>
+ * <p>
+ * Usage: SoakTest [--option value]...
+ * <ul>
+ * <li>--duration - length of the test in seconds, 60 by default,</li>
+ * <li>--rate - messages received by the phone per second, 50 by default,</li>
+ * <li>--outbound-rate - messages sent from the PC per second, 5 by default,</li>
+ * <li>--people, --messages - size of the snapshot sent after the first connection, 50 people and 10000 messages by
+ * default,</li>
+ * <li>--protocol - binary or serialization, binary by default,</li>
+ * <li>--transport - server transport, see TransportMode,</li>
+ * <li>--disconnect-every - seconds between scripted disconnects, 0 (never) by default,</li>
+ * <li>--offline - seconds the phone stays disconnected, 2 by default,</li>
+ * <li>--report - seconds between report lines, 10 by default,</li>
+ * <li>--port - server port, 18888 by default,</li>
+ * <li>--store - message store directory, a fresh temporary one by default.</li>
+ * </ul>
+ * Every report line shows throughput in both directions, end-to-end latency percentiles (from writing a message
+ * to the wire to its delivery to the engine listener, and from MainEngine.sendMessage to its arrival at the phone),
+ * heap used after garbage collection and number of threads. Heap that keeps growing over hours points to a leak.
+ * At the end every stored conversation is counted, and the test exits with status 1 if any message was lost. The
+ * phone also has to receive every message sent from the PC, unless it used serialization and was disconnected,
+ * which loses messages that were on the wire. Run with --rate 0 to check that messages from the PC are sent on a
+ * link with no inbound traffic.
+ * </p>
+ * <p>
+ * Latency is measured by prefixing message texts with System.nanoTime() of the sender, which is why phone and server
+ * have to share the process.
+ * </p>
+ */
+public class SoakTest {
+    private static final String HOST = "127.0.0.1";
+    private static final char TAG = '#';
+    private static final long CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final long DRAIN_TIMEOUT_MILLIS = 60000;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 10000;
+    private static final long TICK_MILLIS = 10;
+
+    private final LongAdder inbound = new LongAdder();
+    private final LongAdder outbound = new LongAdder();
+    private final Metrics.Histogram inboundLatency = new Metrics.Histogram();
+    private final Metrics.Histogram outboundLatency = new Metrics.Histogram();
+    private final Random random = new Random(SyntheticData.SEED);
+    private final SyntheticData data = new SyntheticData(SyntheticData.SEED);
+
+    private long duration = 60, disconnectEvery, offline = 2, report = 10;
+    private double rate = 50, outboundRate = 5;
+    private int people = 50, messages = 10000, port = 18888;
+    private boolean binary = true;
+    private String store;
+
+    public static void main(String[] args) throws IOException {
+        SoakTest test = new SoakTest();
+        for (int i = 0; i + 1 < args.length; i += 2) test.set(args[i], args[i + 1]);
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    private void set(String option, String value) {
+        switch (option) {
+            case "--duration":
+                duration = Long.parseLong(value);
+                break;
+            case "--rate":
+                rate = Double.parseDouble(value);
+                break;
+            case "--outbound-rate":
+                outboundRate = Double.parseDouble(value);
+                break;
+            case "--people":
+                people = Integer.parseInt(value);
+                break;
+            case "--messages":
+                messages = Integer.parseInt(value);
+                break;
+            case "--protocol":
+                binary = !"serialization".equalsIgnoreCase(value);
+                break;
+            case "--transport":
+                System.setProperty(MainEngine.TRANSPORT_PROPERTY, value);
+                break;
+            case "--disconnect-every":
+                disconnectEvery = Long.parseLong(value);
+                break;
+            case "--offline":
+                offline = Long.parseLong(value);
+                break;
+            case "--report":
+                report = Long.parseLong(value);
+                break;
+            case "--port":
+                port = Integer.parseInt(value);
+                break;
+            case "--store":
+                store = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    /**
+     * @return true if every message sent in both directions was stored
+     */
+    private boolean run() throws IOException {
+        if (store == null) store = Files.createTempDirectory("informer-soak").toString();
+        System.setProperty(MainEngine.STORE_DIRECTORY_PROPERTY, store);
+        MainEngine engine = MainEngine.getInstance();
+        engine.setListener(new LatencyListener(), Runnable::run);
+        engine.startServer(port);
+
+        Map<Person, Conversation> snapshot = data.database(people, messages);
+        List<Person> contacts = new ArrayList<>(snapshot.keySet());
+        long expected = storedMessages(engine) + messages;
+        PhoneSimulator phone = new PhoneSimulator(HOST, port, binary);
+        phone.setMessageHandler(this::messageReceived);
+        phone.connect(CONNECT_TIMEOUT_MILLIS);
+        phone.sendSnapshot(snapshot);
+
+        long start = System.nanoTime();
+        long end = start + duration * 1000000000L;
+        long nextReport = start + report * 1000000000L;
+        long nextDisconnect = disconnectEvery > 0 ? start + disconnectEvery * 1000000000L : Long.MAX_VALUE;
+        long reconnectAt = Long.MAX_VALUE;
+        long sentIn = 0, sentOut = 0, queuedOut = 0, reconnects = 0;
+        long firstHeap = -1;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            double elapsed = (now - start) / 1e9;
+            for (; sentIn < rate * elapsed; sentIn++) {
+                Conversation conversation = new Conversation(contacts.get(random.nextInt(contacts.size())));
+                Message generated = data.message();
+                conversation.addMessage(new Message(false, generated.getDate(), tag(generated.getText())));
+                phone.send(conversation);
+            }
+            for (; sentOut < outboundRate * elapsed; sentOut++) {
+                if (engine.sendMessage(contacts.get(random.nextInt(contacts.size())), tag(data.text()))) queuedOut++;
+            }
+
+            if (now >= nextDisconnect) {
+                phone.disconnect();
+                reconnectAt = now + offline * 1000000000L;
+                nextDisconnect += disconnectEvery * 1000000000L;
+            }
+            if (now >= reconnectAt) {
+                reconnectAt = Long.MAX_VALUE;
+                phone.connect(CONNECT_TIMEOUT_MILLIS);
+                reconnects++;
+            }
+            if (now >= nextReport) {
+                long heap = usedHeapAfterGc();
+                if (firstHeap < 0) firstHeap = heap;
+                System.out.println(report(elapsed, heap, reconnects));
+                nextReport += report * 1000000000L;
+            }
+            sleep(TICK_MILLIS);
+        }
+        if (!phone.isConnected()) phone.connect(CONNECT_TIMEOUT_MILLIS);
+        expected += sentIn + queuedOut;
+
+        long stored = awaitStored(engine, expected);
+        long received = awaitReceived(phone, queuedOut);
+        long lastHeap = usedHeapAfterGc();
+        System.out.println(report((System.nanoTime() - start) / 1e9, lastHeap, reconnects));
+        System.out.println(Metrics.getInstance());
+        if (firstHeap >= 0)
+            System.out.println(String.format("Heap after gc changed by %+.1f MB", (lastHeap - firstHeap) / 1e6));
+        // Messages not acknowledged before a disconnect are sent again, so the phone may receive more of them
+        System.out.println("Stored " + stored + " of " + expected + " messages, phone received " + received +
+                " messages for " + queuedOut + " sent from the PC");
+
+        engine.stopAllWork(false);
+        phone.disconnect();
+        boolean delivered = received >= queuedOut || (!binary && disconnectEvery > 0);
+        return stored >= expected && delivered;
+    }
+
+    private String report(double elapsed, long heap, long reconnects) {
+        return String.format("%6.0fs in=%d (%.1f/s) p50=%.2fms p99=%.2fms, out=%d (%.1f/s) p50=%.2fms p99=%.2fms, " +
+                        "reconnects=%d, heap=%.1fMB, threads=%d",
+                elapsed, inbound.sum(), inbound.sum() / elapsed, inboundLatency.percentile(0.5) / 1e6,
+                inboundLatency.percentile(0.99) / 1e6, outbound.sum(), outbound.sum() / elapsed,
+                outboundLatency.percentile(0.5) / 1e6, outboundLatency.percentile(0.99) / 1e6, reconnects, heap / 1e6,
+                ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    private void messageReceived(Message message) {
+        outbound.increment();
+        record(message.getText(), outboundLatency);
+    }
+
+    /**
+     * <p>
+     * Waits until the engine stored the expected number of messages or the timeout passes.
+     * </p>
+     *
+     * @return number of stored messages
+     */
+    private static long awaitStored(MainEngine engine, long expected) {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        long stored = storedMessages(engine);
+        while (stored < expected && System.currentTimeMillis() < deadline) {
+            sleep(100);
+            stored = storedMessages(engine);
+        }
+        return stored;
+    }
+
+    /**
+     * <p>
+     * Waits until the phone received the expected number of messages or the timeout passes.
+     * </p>
+     *
+     * @return number of received messages
+     */
+    private static long awaitReceived(PhoneSimulator phone, long expected) {
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MILLIS;
+        long received = phone.getReceivedCount();
+        while (received < expected && System.currentTimeMillis() < deadline) {
+            sleep(100);
+            received = phone.getReceivedCount();
+        }
+        return received;
+    }
+
+    private static long storedMessages(MainEngine engine) {
+        long stored = 0;
+        for (Person person : engine.getPeople()) {
+            ConversationSnapshot conversation = engine.getRecentMessages(person, 0);
+            if (conversation != null) stored += conversation.getTotalCount();
+        }
+        return stored;
+    }
+
+    private static String tag(String text) {
+        return TAG + Long.toString(System.nanoTime()) + ' ' + text;
+    }
+
+    private static void record(String text, Metrics.Histogram latency) {
+        if (text == null || text.isEmpty() || text.charAt(0) != TAG) return;
+        int space = text.indexOf(' ');
+        if (space < 0) return;
+        try {
+            latency.record(System.nanoTime() - Long.parseLong(text.substring(1, space)));
+        } catch (NumberFormatException e) {
+        }
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * <p>
+     * Listener recording messages received by the engine. Messages merged during synchronization are not reported
+     * to listeners, so they are only counted at the end.
+     * </p>
+     */
+    private class LatencyListener implements EngineListener {
+        @Override
+        public void showNewMessageInformation(Conversation newMessages) {
+            for (Message message : newMessages.getMessages()) {
+                inbound.increment();
+                record(message.getText(), inboundLatency);
+            }
+        }
+
+        @Override
+        public void connectionStateChanged(boolean isConnected) {
+        }
+
+        @Override
+        public void loadPeople(List<Person> people) {
+        }
+
+        @Override
+        public void contactInserted(Person person, int index) {
+        }
+
+        @Override
+        public void contactMoved(Person person, int from, int to) {
+        }
+
+        @Override
+        public void loadConversation(ConversationSnapshot conversation) {
+        }
+
+        @Override
+        public void showPage(ConversationSnapshot page) {
+        }
+
+        @Override
+        public void showConversationAt(ConversationSnapshot page, int messageIndex) {
+        }
+
+        @Override
+        public void appendMessages(Person person, int firstIndex, List<Message> newMessages) {
+        }
+
+        @Override
+        public void clearAllViews() {
+        }
+    }
+}
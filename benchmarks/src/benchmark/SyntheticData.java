@@ -0,0 +1,123 @@
+package benchmark;
+
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * <p>
+ * Generates people and conversations resembling data synchronized from a real phone.
+ * </p>
+ * <p>
+ * Messages are made of common words with some diacritics, emoji shortcodes and longer texts mixed in, dates grow
+ * by a random amount of time. Sizes of conversations follow a power law: few people have most of the messages, like
+ * in a real inbox. Data depends only on the seed, so every benchmark run gets the same input.
+ * </p>
+ */
+public final class SyntheticData {
+    public static final long SEED = 0x1F0E2017L;
+    private static final String[] WORDS = {
+            "hi", "hello", "ok", "okay", "yes", "no", "thanks", "see", "you", "tomorrow", "today", "tonight", "at",
+            "home", "work", "call", "me", "when", "are", "where", "what", "time", "meeting", "dinner", "lunch", "late",
+            "sorry", "love", "the", "a", "to", "and", "will", "be", "there", "in", "minutes", "bus", "train", "car",
+            "cześć", "dzięki", "jutro", "później", "zadzwoń", "może", "gdzie", "jesteś", "żółw", "łódź", ":smile:",
+            ":+1:", ":heart:", ":joy:", "?", "!"
+    };
+    private static final String DATE_PATTERN = "dd/MM/yyyy HH:mm:ss";
+    private static final long START_TIME = 1483228800000L; // 01/01/2017
+
+    private final Random random;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_PATTERN);
+    private long time = START_TIME;
+
+    public SyntheticData(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * <p>
+     * Creates people with unique numbers and without photos.
+     * </p>
+     *
+     * @param count - number of people
+     * @return list of people in random order
+     */
+    public List<Person> people(int count) {
+        List<Person> people = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) people.add(new Person("Contact " + i, "+48" + (500000000 + i), null));
+        Collections.shuffle(people, random);
+        return people;
+    }
+
+    /**
+     * <p>
+     * Creates conversation with the provided person.
+     * </p>
+     *
+     * @param person   - conversation participant
+     * @param messages - number of messages
+     * @return conversation with messages in time order
+     */
+    public Conversation conversation(Person person, int messages) {
+        Conversation conversation = new Conversation(person);
+        for (int i = 0; i < messages; i++) conversation.addMessage(message());
+        return conversation;
+    }
+
+    /**
+     * <p>
+     * Creates whole database of conversations, such as sent by the phone during full synchronization.
+     * </p>
+     *
+     * @param people   - number of people
+     * @param messages - total number of messages, at least one per person
+     * @return map of people and their conversations
+     */
+    public Map<Person, Conversation> database(int people, int messages) {
+        List<Person> participants = people(people);
+        int[] sizes = new int[people];
+        double total = 0;
+        for (int i = 0; i < people; i++) total += 1.0 / (i + 1);
+        int assigned = 0;
+        for (int i = 0; i < people; i++) {
+            sizes[i] = Math.max(1, (int) (messages / total / (i + 1)));
+            assigned += sizes[i];
+        }
+        sizes[0] += Math.max(0, messages - assigned);
+
+        Map<Person, Conversation> database = new LinkedHashMap<>();
+        for (int i = 0; i < people; i++) database.put(participants.get(i), conversation(participants.get(i), sizes[i]));
+        return database;
+    }
+
+    /**
+     * @return message with random text, author and date later than the previous one
+     */
+    public Message message() {
+        time += 1000L * (1 + random.nextInt(3600));
+        return new Message(random.nextInt(3) == 0, dateFormat.format(new Date(time)), text());
+    }
+
+    /**
+     * @return text of a typical message, usually a few words long, sometimes a long paragraph
+     */
+    public String text() {
+        int words = random.nextInt(10) == 0 ? 40 + random.nextInt(80) : 1 + random.nextInt(12);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) text.append(' ');
+            String word = WORDS[random.nextInt(WORDS.length)];
+            text.append(i == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+        }
+        return text.toString();
+    }
+}
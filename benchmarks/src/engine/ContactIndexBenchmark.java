@@ -0,0 +1,67 @@
+package engine;
+
+import benchmark.SyntheticData;
+import informer_api.conversation.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures the cost of keeping the contact list ordered when a message arrives: sorting the whole list again, as
+ * every refresh used to do, against moving a single entry of ContactIndex.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ContactIndexBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int people;
+
+    private List<Person> unsorted;
+    private ContactIndex index;
+    private final Random random = new Random(SyntheticData.SEED);
+    private long time;
+
+    @Setup
+    public void generate() {
+        unsorted = new SyntheticData(SyntheticData.SEED).people(people);
+        Map<Person, Long> times = new HashMap<>();
+        for (Person person : unsorted) times.put(person, time++);
+        index = new ContactIndex(ContactIndex.Order.RECENT);
+        index.updateAll(times);
+    }
+
+    @Benchmark
+    public List<Person> fullSort() {
+        List<Person> list = new ArrayList<>(unsorted);
+        list.sort(Comparator.comparing(Person::getNumber));
+        return list;
+    }
+
+    @Benchmark
+    public int incrementalUpdate() {
+        index.update(unsorted.get(random.nextInt(unsorted.size())), time++);
+        return index.size();
+    }
+}
@@ -0,0 +1,138 @@
+package engine;
+
+import benchmark.SyntheticData;
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures adding messages to the database and reading whole conversations, in memory and backed by MessageStore.
+ * Conversation with the measured person holds the provided number of messages.
+ * </p>
+ * <p>
+ * Search index is updated synchronously, so its cost is included in adding messages.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class DatabaseBenchmark {
+    @Param({"10", "1000", "100000", "1000000"})
+    public int messages;
+
+    @Param({"memory", "store"})
+    public String backend;
+
+    private File directory;
+    private Database database;
+    private Person person;
+    private Conversation batch;
+    private SyntheticData data;
+
+    @Setup(Level.Trial)
+    public void fill() throws IOException {
+        directory = Files.createTempDirectory("informer-benchmark").toFile();
+        // Database notifies the engine about new people, which must not touch the real store
+        System.setProperty(MainEngine.STORE_DIRECTORY_PROPERTY, new File(directory, "engine").getPath());
+        data = new SyntheticData(SyntheticData.SEED);
+        person = data.people(1).get(0);
+        database = open();
+        database.mergeSnapshot(Collections.singletonMap(person, data.conversation(person, messages)));
+        if (database.getConversationWithPerson(person) == null) throw new IllegalStateException("Conversation not stored");
+        batch = new Conversation(person);
+        batch.addMessage(data.message());
+        database.addNewMessages(batch);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        database.close();
+        deleteRecursively(directory);
+    }
+
+    /**
+     * Measures appending a single new message to a long conversation.
+     */
+    @Benchmark
+    public ConversationSnapshot addNewMessages() {
+        Conversation newMessages = new Conversation(person);
+        newMessages.addMessage(data.message());
+        return database.addNewMessages(newMessages);
+    }
+
+    /**
+     * Measures dropping a message that is already stored, as when the phone resends it.
+     */
+    @Benchmark
+    public ConversationSnapshot addDuplicateMessages() {
+        return database.addNewMessages(batch);
+    }
+
+    /**
+     * Measures reading conversation that is already in memory.
+     */
+    @Benchmark
+    public ConversationSnapshot getConversationWithPerson() {
+        return database.getConversationWithPerson(person);
+    }
+
+    /**
+     * <p>
+     * Conversation read right after the application started, when its messages are still on disk only.
+     * </p>
+     */
+    @State(Scope.Thread)
+    public static class ColdDatabase {
+        private Database database;
+
+        @Setup(Level.Invocation)
+        public void reopen(DatabaseBenchmark benchmark) throws IOException {
+            if (!"memory".equals(benchmark.backend)) {
+                benchmark.database.close();
+                benchmark.database = benchmark.open();
+            }
+            database = benchmark.database;
+        }
+    }
+
+    /**
+     * Measures reading conversation from the store. In memory backend this is the same as getConversationWithPerson.
+     */
+    @Benchmark
+    public ConversationSnapshot getConversationWithPersonCold(ColdDatabase cold) {
+        return cold.database.getConversationWithPerson(person);
+    }
+
+    private Database open() throws IOException {
+        if ("memory".equals(backend)) return new Database(Collections.emptyMap(), Runnable::run);
+        return new Database(MessageStore.open(new File(directory, "store")), Runnable::run);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) deleteRecursively(child);
+        file.delete();
+    }
+}
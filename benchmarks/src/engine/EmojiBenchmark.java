@@ -0,0 +1,65 @@
+package engine;
+
+import benchmark.SyntheticData;
+import com.vdurmont.emoji.EmojiParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Compares emoji-java parser with EmojiShortcodes on texts typed in the compose box. keystroke measures the check done
+ * on every key press, which looks only at the end of the text.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EmojiBenchmark {
+    /**
+     * Approximate text length in characters.
+     */
+    @Param({"20", "160", "2000"})
+    public int length;
+
+    private String text;
+    private EmojiShortcodes shortcodes;
+
+    @Setup
+    public void generate() {
+        SyntheticData data = new SyntheticData(SyntheticData.SEED);
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < length) builder.append(data.text()).append(' ');
+        builder.setLength(length);
+        text = builder.append(" :smile:").toString();
+        shortcodes = EmojiShortcodes.getInstance();
+    }
+
+    @Benchmark
+    public String emojiParser() {
+        return EmojiParser.parseToUnicode(text);
+    }
+
+    @Benchmark
+    public String convertAll() {
+        return shortcodes.convertAll(text);
+    }
+
+    @Benchmark
+    public EmojiShortcodes.Match keystroke() {
+        return shortcodes.findEndingAt(text, text.length());
+    }
+}
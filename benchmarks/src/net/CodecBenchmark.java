@@ -0,0 +1,169 @@
+package net;
+
+import benchmark.SyntheticData;
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures round trips of objects exchanged with the phone through every wire protocol: object is written by an
+ * encoder and read back by a decoder connected to it through a memory pipe. Encoders and decoders live as long as
+ * the benchmark, like they live as long as the connection.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    /**
+     * Protocol version without compression.
+     */
+    private static final int PLAIN_VERSION = 1;
+
+    @Param({"binary", "compressed", "serialization"})
+    public String protocol;
+
+    private MessageEncoder encoder;
+    private MessageDecoder decoder;
+    private Message message;
+
+    /**
+     * <p>
+     * Conversation and database payloads, sized by the number of messages.
+     * </p>
+     */
+    @State(Scope.Thread)
+    public static class Payloads {
+        @Param({"10", "1000", "100000"})
+        public int messages;
+
+        private Conversation conversation;
+        private Map<Person, Conversation> database;
+
+        @Setup
+        public void generate() {
+            SyntheticData data = new SyntheticData(SyntheticData.SEED);
+            conversation = data.conversation(data.people(1).get(0), messages);
+            database = data.database(Math.max(1, messages / 200), messages);
+        }
+    }
+
+    @Setup
+    public void connect() throws IOException {
+        Pipe pipe = new Pipe();
+        switch (protocol) {
+            case "binary":
+                encoder = new BinaryEncoder(pipe.output, PLAIN_VERSION);
+                decoder = new BinaryDecoder(pipe.input, PLAIN_VERSION);
+                break;
+            case "compressed":
+                encoder = new BinaryEncoder(pipe.output, FrameCodec.COMPRESSION_VERSION);
+                decoder = new BinaryDecoder(pipe.input, FrameCodec.COMPRESSION_VERSION);
+                break;
+            default:
+                encoder = new SerializationEncoder(new ObjectOutputStream(pipe.output));
+                encoder.flush();
+                decoder = new SerializationDecoder(pipe.input);
+        }
+        SyntheticData data = new SyntheticData(SyntheticData.SEED);
+        message = new Message(data.people(1).get(0).getNumber(), data.text());
+    }
+
+    @Benchmark
+    public Object messageRoundTrip() throws IOException {
+        return roundTrip(message);
+    }
+
+    @Benchmark
+    public Object conversationRoundTrip(Payloads payloads) throws IOException {
+        return roundTrip(payloads.conversation);
+    }
+
+    @Benchmark
+    public Object databaseRoundTrip(Payloads payloads) throws IOException {
+        return roundTrip(payloads.database);
+    }
+
+    private Object roundTrip(Object object) throws IOException {
+        encoder.write(object);
+        encoder.flush();
+        return decoder.read();
+    }
+
+    /**
+     * <p>
+     * In-memory connection. Bytes written to the output are read from the input, buffer is rewound once all of them
+     * were read.
+     * </p>
+     */
+    private static class Pipe {
+        private byte[] data = new byte[64 * 1024];
+        private int written, read;
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                if (written + length > data.length) data = Arrays.copyOf(data, Math.max(written + length, data.length * 2));
+                System.arraycopy(bytes, offset, data, written, length);
+                written += length;
+            }
+        };
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() {
+                if (read == written) return -1;
+                int b = data[read++] & 0xFF;
+                rewindIfEmpty();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (read == written) return -1;
+                int count = Math.min(length, written - read);
+                System.arraycopy(data, read, bytes, offset, count);
+                read += count;
+                rewindIfEmpty();
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return written - read;
+            }
+        };
+
+        private void rewindIfEmpty() {
+            if (read == written) read = written = 0;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package net;
+
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Client behaving like the Informer application on a phone, so that the server can be tested without one.
+ * </p>
+ * <p>
+ * Simulator speaks either protocol. With binary protocol it answers SyncRequest with messages it streamed while
+ * disconnected (SyncDelta) followed by SyncComplete, and acknowledges every received message. After reconnecting it
+ * resumes the session with the last received sequence number, and ignores messages it already received. With serialization
+ * protocol it sends its snapshot again after reconnecting, followed by the messages streamed while disconnected, like
+ * older phones did.
+ * </p>
+ * <p>
+ * Snapshot and streamed messages are sent by the thread invoking the simulator, messages sent by the server are read
+ * by a separate thread and passed to the message handler.
+ * </p>
+ */
+public class PhoneSimulator {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private final String host;
+    private final int port;
+    private final boolean binary;
+    private final Object writeLock = new Object();
+    private final Map<Person, Conversation> missed = new LinkedHashMap<>();
+    private Map<Person, Conversation> snapshot;
+    private Consumer<Message> messageHandler = message -> {
+    };
+    private volatile Socket socket;
+    private MessageEncoder encoder;
+    private long sent, received;
+    private long sessionToken = -1, lastReceivedId;
+
+    /**
+     * @param host   - address of the server
+     * @param port   - port of the server
+     * @param binary - true for binary protocol (newest version), false for Java serialization
+     */
+    public PhoneSimulator(String host, int port, boolean binary) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+    }
+
+    /**
+     * @param handler - invoked by the reading thread for every message the server asked to send
+     */
+    public void setMessageHandler(Consumer<Message> handler) {
+        messageHandler = handler;
+    }
+
+    /**
+     * <p>
+     * Connects to the server, retrying until it accepts the connection or the timeout passes, and performs handshake.
+     * Snapshot sent before is sent again if the protocol has no incremental synchronization.
+     * </p>
+     *
+     * @param timeoutMillis - how long to retry
+     * @throws IOException - if server could not be reached in time or handshake failed
+     */
+    public void connect(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Socket connection;
+        while (true) {
+            try {
+                connection = new Socket(host, port);
+                break;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                sleep(RETRY_DELAY_MILLIS);
+            }
+        }
+        try {
+            handshake(connection);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private void handshake(Socket connection) throws IOException {
+        connection.setTcpNoDelay(true);
+        OutputStream outStream = new BufferedOutputStream(connection.getOutputStream(), BUFFER_SIZE);
+        InputStream inStream = new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE);
+        MessageDecoder decoder;
+        synchronized (writeLock) {
+            if (binary) {
+                // Server always starts with serialization header, which binary clients skip
+                readFully(inStream, new byte[4]);
+                outStream.write(FrameCodec.MAGIC);
+                outStream.write(FrameCodec.VERSION);
+                outStream.flush();
+                byte[] header = new byte[FrameCodec.MAGIC.length];
+                readFully(inStream, header);
+                if (!Arrays.equals(header, FrameCodec.MAGIC)) throw new IOException("Unexpected handshake answer");
+                int version = inStream.read();
+                encoder = new BinaryEncoder(outStream, version);
+                decoder = new BinaryDecoder(inStream, version);
+                socket = connection;
+                if (sessionToken >= 0 && version >= FrameCodec.SESSION_VERSION)
+                    write(new SessionResume(sessionToken, lastReceivedId));
+            } else {
+                ObjectOutputStream serializationStream = new ObjectOutputStream(outStream);
+                serializationStream.flush();
+                encoder = new SerializationEncoder(serializationStream);
+                decoder = new SerializationDecoder(inStream);
+            }
+            socket = connection;
+            if (!binary) {
+                if (snapshot != null) write(snapshot);
+                flushMissed(false);
+            }
+        }
+
+        Thread reader = new Thread(() -> read(connection, decoder), "PhoneSimulator reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * <p>
+     * Sends all conversations held by the phone, like during full synchronization.
+     * </p>
+     *
+     * @param conversations - snapshot of the phone database
+     * @throws IOException - if connection broke
+     */
+    public void sendSnapshot(Map<Person, Conversation> conversations) throws IOException {
+        synchronized (writeLock) {
+            snapshot = conversations;
+            write(conversations);
+        }
+    }
+
+    /**
+     * <p>
+     * Sends messages received by the phone. When simulator is disconnected, or the connection breaks, they are kept
+     * and sent during the next synchronization.
+     * </p>
+     *
+     * @param newMessages - person and new messages
+     * @return true if messages were sent right away
+     */
+    public boolean send(Conversation newMessages) {
+        synchronized (writeLock) {
+            if (socket != null) {
+                try {
+                    write(newMessages);
+                    return true;
+                } catch (IOException e) {
+                    System.err.println("PhoneSimulator: " + e.getMessage());
+                    disconnect();
+                }
+            }
+            Conversation buffered = missed.get(newMessages.getPerson());
+            if (buffered == null) missed.put(newMessages.getPerson(), buffered = new Conversation(newMessages.getPerson()));
+            for (Message message : newMessages.getMessages()) buffered.addMessage(message);
+            return false;
+        }
+    }
+
+    /**
+     * <p>
+     * Closes connection abruptly, like a phone losing its network.
+     * </p>
+     */
+    public void disconnect() {
+        synchronized (writeLock) {
+            Socket connection = socket;
+            socket = null;
+            if (connection == null) return;
+            try {
+                connection.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    /**
+     * @return number of objects sent to the server
+     */
+    public synchronized long getSentCount() {
+        return sent;
+    }
+
+    /**
+     * @return number of messages received from the server
+     */
+    public synchronized long getReceivedCount() {
+        return received;
+    }
+
+    private void read(Socket connection, MessageDecoder decoder) {
+        try {
+            while (socket == connection) {
+                Object object = decoder.read();
+                if (object instanceof SessionStart) {
+                    synchronized (writeLock) {
+                        sessionToken = ((SessionStart) object).getToken();
+                    }
+                } else if (object instanceof PhotoDigests) {
+                    synchronized (writeLock) {
+                        if (socket == connection && encoder instanceof BinaryEncoder)
+                            ((BinaryEncoder) encoder).addKnownPhotos(((PhotoDigests) object).getHashes());
+                    }
+                } else if (object instanceof SyncRequest) {
+                    synchronized (writeLock) {
+                        flushMissed(true);
+                    }
+                } else if (object instanceof OutboundMessage) {
+                    long id = ((OutboundMessage) object).getId();
+                    boolean duplicate;
+                    synchronized (writeLock) {
+                        if (socket == connection) write(new Acknowledgment(id));
+                        duplicate = id <= lastReceivedId;
+                        lastReceivedId = Math.max(lastReceivedId, id);
+                    }
+                    if (!duplicate) messageReceived(((OutboundMessage) object).getMessage());
+                } else if (object instanceof Message) {
+                    messageReceived((Message) object);
+                }
+            }
+        } catch (IOException e) {
+            if (socket == connection) {
+                System.err.println("PhoneSimulator: " + e.getMessage());
+                disconnect();
+            }
+        }
+    }
+
+    private void messageReceived(Message message) {
+        synchronized (this) {
+            received++;
+        }
+        messageHandler.accept(message);
+    }
+
+    /**
+     * Sends messages kept while disconnected, as deltas of incremental synchronization or as plain new messages.
+     */
+    private void flushMissed(boolean asDelta) throws IOException {
+        List<Conversation> conversations = new ArrayList<>(missed.values());
+        missed.clear();
+        for (Conversation conversation : conversations) write(asDelta ? new SyncDelta(conversation) : conversation);
+        if (asDelta) write(SyncComplete.INSTANCE);
+    }
+
+    private void write(Object object) throws IOException {
+        if (socket == null) throw new IOException("Simulator is not connected");
+        encoder.write(object);
+        encoder.flush();
+        synchronized (this) {
+            sent++;
+        }
+    }
+
+    private static void readFully(InputStream stream, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = stream.read(buffer, offset, buffer.length - offset);
+            if (read < 0) throw new EOFException("Connection closed during handshake");
+            offset += read;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package daemon;
+
+import engine.ConversationSnapshot;
+import engine.MainEngine;
+import engine.Metrics;
+import engine.SearchResult;
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * <p>
+ * Line based command interface of the headless daemon, read from the standard input or a control socket connection.
+ * Every command is a single line, every answer one or more lines:
+ * <ul>
+ * <li>people - lists conversations,</li>
+ * <li>history number [count] - shows the most recent messages of a conversation, 20 by default,</li>
+ * <li>send number text - sends message,</li>
+ * <li>tail [number] - prints messages received from now on, from everybody or from the provided number only,</li>
+ * <li>untail - stops printing received messages,</li>
+ * <li>search query - finds messages containing all words of the query,</li>
+ * <li>stats - prints runtime metrics,</li>
+ * <li>quit - closes this session,</li>
+ * <li>shutdown - stops the daemon.</li>
+ * </ul>
+ * Messages are printed as: date, &gt; for sent or &lt; for received, number and text.
+ * </p>
+ */
+class CommandSession implements Runnable {
+    private static final int DEFAULT_HISTORY = 20;
+    private static final String HELP = "Commands: people, history <number> [count], send <number> <text>, " +
+            "tail [number], untail, search <query>, stats, quit, shutdown";
+
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private final ConsoleListener listener;
+    private final Runnable shutdown;
+    private volatile boolean tailing;
+    private volatile String tailedNumber;
+
+    /**
+     * @param in       - source of commands
+     * @param out      - destination of answers and tailed messages
+     * @param listener - listener of the daemon, passes received messages to this session while it tails them
+     * @param shutdown - stops the daemon
+     */
+    CommandSession(BufferedReader in, PrintWriter out, ConsoleListener listener, Runnable shutdown) {
+        this.in = in;
+        this.out = out;
+        this.listener = listener;
+        this.shutdown = shutdown;
+    }
+
+    @Override
+    public void run() {
+        listener.register(this);
+        print(HELP);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if ("quit".equals(line)) break;
+                if ("shutdown".equals(line)) {
+                    print("Shutting down");
+                    shutdown.run();
+                    break;
+                }
+                execute(line);
+            }
+        } catch (IOException e) {
+            System.err.println("CommandSession: " + e.getMessage());
+        } finally {
+            listener.unregister(this);
+        }
+    }
+
+    /**
+     * <p>
+     * Prints received messages if this session tails their conversation. Invoked by the listener.
+     * </p>
+     */
+    void messagesReceived(Conversation newMessages) {
+        String number = tailedNumber;
+        if (!tailing || (number != null && !number.equals(newMessages.getPerson().getNumber()))) return;
+        for (Message message : newMessages.getMessages()) print(format(newMessages.getPerson(), message));
+    }
+
+    synchronized void print(String line) {
+        out.println(line);
+    }
+
+    private void execute(String line) {
+        String[] words = line.split("\\s+", 3);
+        String argument = words.length > 1 ? line.substring(words[0].length()).trim() : "";
+        MainEngine engine = MainEngine.getInstance();
+        try {
+            switch (words[0]) {
+                case "people":
+                    for (Person person : engine.getPeople())
+                        print(person.getNumber() + " " + person.getNickname());
+                    break;
+                case "history":
+                    if (words.length < 2) throw new IllegalArgumentException("Usage: history <number> [count]");
+                    history(words[1], words.length > 2 ? Integer.parseInt(words[2]) : DEFAULT_HISTORY);
+                    break;
+                case "send":
+                    if (words.length < 3) throw new IllegalArgumentException("Usage: send <number> <text>");
+                    Person recipient = engine.findPerson(words[1]);
+                    if (recipient == null) recipient = new Person(words[1], words[1], null);
+                    print(engine.sendMessage(recipient, words[2]) ? "Queued" : "Not sent, phone is not connected " +
+                            "or too many messages are waiting");
+                    break;
+                case "tail":
+                    tailedNumber = words.length > 1 ? words[1] : null;
+                    tailing = true;
+                    print("Tailing " + (tailedNumber == null ? "all conversations" : tailedNumber));
+                    break;
+                case "untail":
+                    tailing = false;
+                    print("Stopped tailing");
+                    break;
+                case "search":
+                    for (SearchResult result : engine.search(argument)) {
+                        // Message is missing if it could not be read back from the store
+                        if (result.getMessage() != null) print(format(result.getPerson(), result.getMessage()));
+                        else print(result.getPerson().getNumber() + " message " + result.getMessageIndex());
+                    }
+                    break;
+                case "stats":
+                    print(Metrics.getInstance().toString());
+                    break;
+                default:
+                    print(HELP);
+            }
+        } catch (IllegalArgumentException e) {
+            print(e.getMessage());
+        }
+    }
+
+    private void history(String number, int count) {
+        Person person = MainEngine.getInstance().findPerson(number);
+        ConversationSnapshot conversation = person == null ? null :
+                MainEngine.getInstance().getRecentMessages(person, count);
+        if (conversation == null) {
+            print("No conversation with " + number);
+            return;
+        }
+        for (Message message : conversation.getMessages()) print(format(person, message));
+    }
+
+    private static String format(Person person, Message message) {
+        return message.getDate() + (message.isSentByOwner() ? " > " : " < ") + person.getNumber() + " " +
+                message.getText();
+    }
+}
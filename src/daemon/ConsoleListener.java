@@ -0,0 +1,72 @@
+package daemon;
+
+import engine.ConversationSnapshot;
+import engine.EngineListener;
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>
+ * Listener of the headless daemon. There are no views to update, so it only passes connection changes and received
+ * messages to command sessions that tail them.
+ * </p>
+ */
+class ConsoleListener implements EngineListener {
+    private final List<CommandSession> sessions = new CopyOnWriteArrayList<>();
+
+    void register(CommandSession session) {
+        sessions.add(session);
+    }
+
+    void unregister(CommandSession session) {
+        sessions.remove(session);
+    }
+
+    @Override
+    public void connectionStateChanged(boolean isConnected) {
+        String line = isConnected ? "* phone connected" : "* phone disconnected";
+        System.out.println(line);
+        for (CommandSession session : sessions) session.print(line);
+    }
+
+    @Override
+    public void showNewMessageInformation(Conversation newMessages) {
+        for (CommandSession session : sessions) session.messagesReceived(newMessages);
+    }
+
+    @Override
+    public void loadPeople(List<Person> people) {
+    }
+
+    @Override
+    public void contactInserted(Person person, int index) {
+    }
+
+    @Override
+    public void contactMoved(Person person, int from, int to) {
+    }
+
+    @Override
+    public void loadConversation(ConversationSnapshot conversation) {
+    }
+
+    @Override
+    public void showPage(ConversationSnapshot page) {
+    }
+
+    @Override
+    public void showConversationAt(ConversationSnapshot page, int messageIndex) {
+    }
+
+    @Override
+    public void appendMessages(Person person, int firstIndex, List<Message> newMessages) {
+    }
+
+    @Override
+    public void clearAllViews() {
+    }
+}
@@ -0,0 +1,111 @@
+package daemon;
+
+import engine.EmojiShortcodes;
+import engine.MainEngine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Program entry running the server and the message store without the gui, for example on a home server where JavaFX
+ * is not available or its startup time and heap are not wanted.
+ * </p>
+ * <p>
+ * Usage: HeadlessDaemon [port] [--control port] [--no-stdin]
+ * <ul>
+ * <li>port - port the phone connects to, 8888 by default,</li>
+ * <li>--control - port of the command socket, bound to the loopback address only, disabled by default,</li>
+ * <li>--no-stdin - does not read commands from the standard input, for running as a service.</li>
+ * </ul>
+ * Both the standard input and every connection of the command socket accept line based commands, see CommandSession.
+ * For example: nc localhost 8889, then tail, then send 123456789 Hello.
+ * </p>
+ */
+public class HeadlessDaemon {
+    private static final int DEFAULT_PORT = 8888;
+    private static final CountDownLatch stopped = new CountDownLatch(1);
+    private static final AtomicBoolean stopping = new AtomicBoolean();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = DEFAULT_PORT;
+        int controlPort = 0;
+        boolean readStdin = true;
+        for (int i = 0; i < args.length; i++) {
+            if ("--control".equals(args[i]) && i + 1 < args.length) controlPort = Integer.parseInt(args[++i]);
+            else if ("--no-stdin".equals(args[i])) readStdin = false;
+            else port = Integer.parseInt(args[i]);
+        }
+
+        ConsoleListener listener = new ConsoleListener();
+        EmojiShortcodes.preload();
+        // Listener only formats and writes lines, so it is invoked directly by the publish stage
+        MainEngine.getInstance().setListener(listener, Runnable::run);
+        MainEngine.getInstance().startServer(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(HeadlessDaemon::stop, "HeadlessDaemon shutdown"));
+
+        if (controlPort > 0) startControlSocket(controlPort, listener);
+        if (readStdin) {
+            CommandSession console = new CommandSession(
+                    new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                    new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), true),
+                    listener, HeadlessDaemon::stop);
+            startThread(console, "HeadlessDaemon console");
+        }
+        stopped.await();
+    }
+
+    /**
+     * <p>
+     * Stops the engine, saving everything queued so far, and lets main method return. Safe to invoke more than once.
+     * </p>
+     */
+    static void stop() {
+        if (stopping.getAndSet(true)) return;
+        MainEngine.getInstance().stopAllWork(false);
+        stopped.countDown();
+    }
+
+    private static void startControlSocket(int port, ConsoleListener listener) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        System.out.println("Control socket listening on " + serverSocket.getLocalSocketAddress());
+        startThread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    CommandSession session = new CommandSession(
+                            new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)),
+                            new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true),
+                            listener, HeadlessDaemon::stop);
+                    startThread(() -> {
+                        session.run();
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                        }
+                    }, "HeadlessDaemon session " + socket.getPort());
+                } catch (IOException e) {
+                    System.err.println("HeadlessDaemon: " + e.getMessage());
+                }
+            }
+        }, "HeadlessDaemon control socket");
+    }
+
+    private static void startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private HeadlessDaemon() {
+    }
+}
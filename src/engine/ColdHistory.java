@@ -0,0 +1,201 @@
+package engine;
+
+import informer_api.conversation.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * Older part of a conversation, kept compressed outside of the heap.
+ * </p>
+ * <p>
+ * Messages are packed in blocks of BLOCK_SIZE, every block serialized, compressed with Deflate and copied to its own
+ * direct ByteBuffer, so years of history take a fraction of their size and none of it is scanned by the garbage
+ * collector. Blocks never change once written. Appending returns a new history sharing the blocks of the previous one,
+ * so readers holding the previous one are not affected.
+ * </p>
+ * <p>
+ * Reading a message inflates its whole block. The last CACHED_BLOCKS inflated blocks are kept on the heap, so that
+ * scrolling back through the conversation inflates every block once.
+ * </p>
+ */
+final class ColdHistory {
+    static final int BLOCK_SIZE = 256;
+    private static final int CACHED_BLOCKS = 4;
+    private static final int FLAG_SENT_BY_OWNER = 1;
+    private static final int FLAG_HAS_NUMBER = 2;
+
+    private final ByteBuffer[] blocks;
+    private final long compressedBytes;
+    private final Map<Integer, Message[]> cache;
+
+    private ColdHistory(ByteBuffer[] blocks, long compressedBytes, Map<Integer, Message[]> cache) {
+        this.blocks = blocks;
+        this.compressedBytes = compressedBytes;
+        this.cache = cache;
+    }
+
+    /**
+     * @return history of a conversation without messages, with its own cache of inflated blocks
+     */
+    static ColdHistory empty() {
+        Map<Integer, Message[]> cache = new LinkedHashMap<Integer, Message[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Message[]> eldest) {
+                return size() > CACHED_BLOCKS;
+            }
+        };
+        return new ColdHistory(new ByteBuffer[0], 0, cache);
+    }
+
+    /**
+     * @return number of messages
+     */
+    int size() {
+        return blocks.length * BLOCK_SIZE;
+    }
+
+    /**
+     * @return memory taken outside of the heap in bytes
+     */
+    long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * @param index - position of the message, lower than size
+     * @return message at the position
+     */
+    Message get(int index) {
+        int block = index / BLOCK_SIZE;
+        Message[] messages;
+        synchronized (cache) {
+            messages = cache.get(block);
+        }
+        if (messages == null) {
+            messages = inflate(blocks[block]);
+            synchronized (cache) {
+                cache.put(block, messages);
+            }
+        }
+        return messages[index % BLOCK_SIZE];
+    }
+
+    /**
+     * <p>
+     * Returns history extended with the provided messages. This history is not changed.
+     * </p>
+     *
+     * @param messages - array holding messages to append
+     * @param count    - number of messages to append from the start of the array, multiple of BLOCK_SIZE
+     * @return new history
+     */
+    ColdHistory append(Message[] messages, int count) {
+        ByteBuffer[] extended = Arrays.copyOf(blocks, blocks.length + count / BLOCK_SIZE);
+        long bytes = compressedBytes;
+        for (int i = blocks.length; i < extended.length; i++) {
+            extended[i] = deflate(messages, (i - blocks.length) * BLOCK_SIZE);
+            bytes += extended[i].capacity();
+        }
+        return new ColdHistory(extended, bytes, cache);
+    }
+
+    private static ByteBuffer deflate(Message[] messages, int from) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_SIZE * 64);
+        DataOutputStream out = new DataOutputStream(raw);
+        try {
+            for (int i = from; i < from + BLOCK_SIZE; i++) {
+                Message message = messages[i];
+                out.writeByte((message.isSentByOwner() ? FLAG_SENT_BY_OWNER : 0) |
+                        (message.getNumber() != null ? FLAG_HAS_NUMBER : 0));
+                if (message.getNumber() != null) writeString(out, message.getNumber());
+                writeString(out, message.getDate());
+                writeString(out, message.getText());
+            }
+        } catch (IOException e) {
+            // Writes to a byte array do not fail
+        }
+        byte[] input = raw.toByteArray();
+        Deflater deflater = new Deflater();
+        byte[] output = new byte[input.length + 64];
+        int length;
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            length = deflater.deflate(output);
+            while (!deflater.finished()) {
+                output = Arrays.copyOf(output, output.length * 2);
+                length += deflater.deflate(output, length, output.length - length);
+            }
+        } finally {
+            deflater.end();
+        }
+        ByteBuffer block = ByteBuffer.allocateDirect(4 + length);
+        block.putInt(input.length);
+        block.put(output, 0, length);
+        return block;
+    }
+
+    private static Message[] inflate(ByteBuffer block) {
+        ByteBuffer compressed = block.duplicate();
+        compressed.rewind();
+        byte[] raw = new byte[compressed.getInt()];
+        byte[] input = new byte[compressed.remaining()];
+        compressed.get(input);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) length += inflater.inflate(raw, length, raw.length - length);
+        } catch (DataFormatException e) {
+            // Blocks are written by this process only, so they cannot be malformed
+            throw new IllegalStateException("Corrupted history block", e);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(raw);
+        Message[] messages = new Message[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            int flags = in.get();
+            String number = (flags & FLAG_HAS_NUMBER) != 0 ? readString(in) : null;
+            String date = readString(in);
+            String text = readString(in);
+            messages[i] = number != null ? new Message(number, text) : new Message((flags & FLAG_SENT_BY_OWNER) != 0, date, text);
+        }
+        return messages;
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        if (text == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "ColdHistory[messages=" + size() + ", compressed=" + compressedBytes + " B]";
+    }
+}
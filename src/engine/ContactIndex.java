@@ -0,0 +1,207 @@
+package engine;
+
+import informer_api.conversation.Person;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Contact list kept sorted as messages come, so that it never has to be sorted again as a whole.
+ * </p>
+ * <p>
+ * When a message arrives only the entry of its person is moved: it is found by binary search using its previous time,
+ * removed and inserted at the position found by binary search using the new time. Every change is reported to the
+ * observer as a single insert or move, which views can apply without rebuilding the list. Changes touching many
+ * people at once (such as the first synchronization) are reported as a reset instead.
+ * </p>
+ * <p>
+ * Observer is invoked under the lock of the index, so changes and full snapshots passed to it are always in order.
+ * </p>
+ */
+public class ContactIndex {
+    /**
+     * Orders of the contact list.
+     */
+    public enum Order {
+        /**
+         * Person with the most recent message first, people with equal time by number.
+         */
+        RECENT,
+        /**
+         * By phone number.
+         */
+        NUMBER;
+
+        /**
+         * <p>
+         * Returns order with the provided name, ignoring case.
+         * </p>
+         *
+         * @param name - order name, may be null
+         * @return matching order or RECENT if name is not recognized
+         */
+        public static Order fromName(String name) {
+            for (Order order : values())
+                if (order.name().equalsIgnoreCase(name)) return order;
+            return RECENT;
+        }
+    }
+
+    /**
+     * Receiver of changes of the contact list.
+     */
+    interface Observer {
+        void reset(List<Person> people);
+
+        void inserted(Person person, int index);
+
+        void moved(Person person, int from, int to);
+    }
+
+    /**
+     * Batches changing more people than this are reported as a reset.
+     */
+    private static final int MAX_BATCH_EVENTS = 64;
+    private static final Comparator<Entry> BY_NUMBER = Comparator.comparing(entry -> entry.person.getNumber());
+    private static final Comparator<Entry> BY_RECENT =
+            Comparator.<Entry>comparingLong(entry -> entry.time).reversed().thenComparing(BY_NUMBER);
+
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private final Map<Person, Entry> byPerson = new HashMap<>();
+    private Comparator<Entry> comparator;
+    private Order order;
+    private Observer observer;
+
+    ContactIndex(Order order) {
+        this.order = order;
+        comparator = order == Order.NUMBER ? BY_NUMBER : BY_RECENT;
+    }
+
+    synchronized Order getOrder() {
+        return order;
+    }
+
+    /**
+     * <p>
+     * Changes order of the list and reports it as a reset.
+     * </p>
+     *
+     * @param order - new order
+     */
+    synchronized void setOrder(Order order) {
+        if (order == this.order) return;
+        this.order = order;
+        comparator = order == Order.NUMBER ? BY_NUMBER : BY_RECENT;
+        entries.sort(comparator);
+        reset();
+    }
+
+    /**
+     * @param observer - receiver of changes, null to stop reporting them
+     */
+    synchronized void setObserver(Observer observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * @return people in the order of the list
+     */
+    synchronized List<Person> getPeople() {
+        List<Person> people = new ArrayList<>(entries.size());
+        for (Entry entry : entries) people.add(entry.person);
+        return people;
+    }
+
+    /**
+     * <p>
+     * Reports the whole list to the observer.
+     * </p>
+     */
+    synchronized void reset() {
+        if (observer != null) observer.reset(getPeople());
+    }
+
+    /**
+     * <p>
+     * Records message exchanged with the person, adding the person if needed. Time earlier than the time already
+     * recorded does not move the person.
+     * </p>
+     *
+     * @param person - conversation participant
+     * @param time   - epoch milliseconds of the newest message, MessageDates.UNKNOWN if not known
+     */
+    synchronized void update(Person person, long time) {
+        Entry entry = byPerson.get(person);
+        if (entry == null) {
+            entry = new Entry(person, time);
+            byPerson.put(person, entry);
+            int index = insertionPoint(entry);
+            entries.add(index, entry);
+            if (observer != null) observer.inserted(person, index);
+            return;
+        }
+        entry.person = person;
+        if (time <= entry.time || order == Order.NUMBER) {
+            entry.time = Math.max(entry.time, time);
+            return;
+        }
+        int from = Collections.binarySearch(entries, entry, comparator);
+        entries.remove(from);
+        entry.time = time;
+        int to = insertionPoint(entry);
+        entries.add(to, entry);
+        if (from != to && observer != null) observer.moved(person, from, to);
+    }
+
+    /**
+     * <p>
+     * Records messages exchanged with many people at once. If most of them change position, the list is sorted again
+     * and reported as a reset, otherwise every change is reported separately.
+     * </p>
+     *
+     * @param times - epoch milliseconds of the newest message of every person
+     */
+    synchronized void updateAll(Map<Person, Long> times) {
+        if (times.size() <= MAX_BATCH_EVENTS) {
+            for (Map.Entry<Person, Long> time : times.entrySet()) update(time.getKey(), time.getValue());
+            return;
+        }
+        for (Map.Entry<Person, Long> time : times.entrySet()) {
+            Entry entry = byPerson.get(time.getKey());
+            if (entry == null) {
+                entry = new Entry(time.getKey(), time.getValue());
+                byPerson.put(time.getKey(), entry);
+                entries.add(entry);
+            } else {
+                entry.person = time.getKey();
+                entry.time = Math.max(entry.time, time.getValue());
+            }
+        }
+        entries.sort(comparator);
+        reset();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private int insertionPoint(Entry entry) {
+        int index = Collections.binarySearch(entries, entry, comparator);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    private static class Entry {
+        private Person person;
+        private long time;
+
+        Entry(Person person, long time) {
+            this.person = person;
+            this.time = time;
+        }
+    }
+}
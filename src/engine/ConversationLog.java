@@ -0,0 +1,535 @@
+package engine;
+
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * <p>
+ * Append-only list of messages exchanged with a single person.
+ * </p>
+ * <p>
+ * Writers are serialized on the log itself, so adding messages for different people never contends. Readers do not
+ * lock at all: messages array is only ever appended to (or copied into a bigger one), and size is published after
+ * elements are written, so any snapshot sees a consistent prefix of the conversation.
+ * </p>
+ * <p>
+ * Only the most recent HOT_MESSAGES (at least) of a loaded conversation are kept on the heap. Older messages are moved
+ * in whole blocks to ColdHistory, compressed outside of the heap, and inflated when they are read. Both parts are
+ * published together as an immutable History, so snapshots see the same messages whichever part holds them. Opened
+ * conversation is pinned and keeps new messages on the heap until it is closed.
+ * </p>
+ * <p>
+ * Conversation kept in the store is not read into memory until the whole of it is needed. Until then new messages
+ * are only written to the store and pages of messages are read straight from it.
+ * </p>
+ * <p>
+ * Next to messages the log keeps their dates parsed once into epoch milliseconds, in a primitive array published the
+ * same way as messages. Messages normally come in time order, so the array is sorted and time range queries are a
+ * binary search. If some batch went back in time, a time-ordered permutation of positions is built when needed.
+ * Positions themselves never change, as they are shared with the store, search index and views.
+ * </p>
+ * <p>
+ * New messages are added to the search index under the log lock, once the stored history was indexed with
+ * indexStored. Messages appended before that are indexed together with the history.
+ * </p>
+ * <p>
+ * Messages already held are dropped when appended again, for example when the phone resends them after a broken
+ * connection. They are recognized by fingerprints (see FingerprintSet), checked first in the filter shared by all
+ * conversations and then in the set of this conversation. Fingerprints of stored messages are collected together with
+ * indexing or loading them. If messages are appended to a conversation that is not loaded before that, only the last
+ * FINGERPRINTED_TAIL stored messages are read, since the phone resends only messages it sent shortly before the
+ * connection broke. The set is completed once the whole conversation is read.
+ * </p>
+ */
+class ConversationLog {
+    /**
+     * Number of the most recent messages kept on the heap, see MainEngine.HOT_HISTORY_PROPERTY.
+     */
+    static final int HOT_MESSAGES = Math.max(ColdHistory.BLOCK_SIZE,
+            Integer.getInteger(MainEngine.HOT_HISTORY_PROPERTY, 4 * ColdHistory.BLOCK_SIZE));
+    /**
+     * Number of the most recent stored messages fingerprinted before appending to a conversation that is not loaded.
+     */
+    static final int FINGERPRINTED_TAIL = 4 * ColdHistory.BLOCK_SIZE;
+    private static final long[] NO_TIMES = new long[0];
+    private volatile Person person;
+    private volatile History history = new History(ColdHistory.empty(), new Message[0]);
+    private volatile long[] times = NO_TIMES;
+    private volatile int size;
+    private volatile boolean loaded;
+    private final SearchIndex searchIndex;
+    private final FingerprintFilter filter;
+    private FingerprintSet fingerprints;
+    private boolean tailFingerprinted;
+    private boolean indexed;
+    private boolean pinned;
+    private boolean timeOrdered = true;
+    private int[] timeOrder;
+
+    /**
+     * @param person      - conversation participant
+     * @param loaded      - false if messages are kept in the store and should be read before first use
+     * @param searchIndex - index to add messages to
+     * @param filter      - fingerprints of messages of all conversations
+     */
+    ConversationLog(Person person, boolean loaded, SearchIndex searchIndex, FingerprintFilter filter) {
+        this.person = person;
+        this.loaded = loaded;
+        this.searchIndex = searchIndex;
+        this.filter = filter;
+        this.indexed = loaded;
+    }
+
+    Person getPerson() {
+        return person;
+    }
+
+    void setPerson(Person person) {
+        this.person = person;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * <p>
+     * Keeps new messages on the heap while the conversation is opened. Unpinned conversation moves messages over
+     * HOT_MESSAGES to ColdHistory.
+     * </p>
+     *
+     * @param pinned - true if the conversation is opened
+     */
+    synchronized void setPinned(boolean pinned) {
+        this.pinned = pinned;
+        evict();
+    }
+
+    /**
+     * @return memory taken by compressed messages outside of the heap in bytes
+     */
+    long getColdBytes() {
+        return history.cold.getCompressedBytes();
+    }
+
+    /**
+     * <p>
+     * Returns immutable view of messages added so far. Does not block. Log should be loaded first.
+     * </p>
+     *
+     * @return conversation snapshot
+     */
+    ConversationSnapshot snapshot() {
+        int count = size;
+        return new ConversationSnapshot(person, new HistoryList(history, count));
+    }
+
+    /**
+     * <p>
+     * Returns up to count messages starting at the provided position. Does not load the whole conversation.
+     * </p>
+     *
+     * @param from  - position of the first message
+     * @param count - maximal number of messages
+     * @param store - store holding messages, may be null
+     * @return page of the conversation
+     */
+    ConversationSnapshot page(int from, int count, MessageStore store) {
+        if (loaded || store == null) return slice(from, count);
+        synchronized (this) {
+            if (loaded) return slice(from, count);
+            return readPage(from, count, store);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns up to count most recent messages. Does not load the whole conversation.
+     * </p>
+     *
+     * @param count - maximal number of messages
+     * @param store - store holding messages, may be null
+     * @return page of the conversation
+     */
+    ConversationSnapshot recentPage(int count, MessageStore store) {
+        if (loaded || store == null) {
+            int total = size;
+            return slice(Math.max(0, total - count), count);
+        }
+        synchronized (this) {
+            if (loaded) return recentPage(count, store);
+            return readPage(Math.max(0, storedCount(store) - count), count, store);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns messages at the provided positions. Does not load the whole conversation.
+     * </p>
+     *
+     * @param positions - positions of messages, sorted in ascending order
+     * @param store     - store holding messages, may be null
+     * @return messages at the provided positions, null for positions out of range
+     */
+    Message[] messagesAt(int[] positions, MessageStore store) {
+        if (!loaded && store != null) {
+            synchronized (this) {
+                if (!loaded) {
+                    try {
+                        return store.loadMessagesAt(person, positions);
+                    } catch (IOException e) {
+                        System.err.println("ConversationLog could not read messages of " + person.getNumber() + ": " + e.getMessage());
+                        return new Message[positions.length];
+                    }
+                }
+            }
+        }
+        int total = size;
+        History current = history;
+        Message[] found = new Message[positions.length];
+        for (int i = 0; i < positions.length; i++)
+            if (positions[i] >= 0 && positions[i] < total) found[i] = current.get(positions[i]);
+        return found;
+    }
+
+    /**
+     * <p>
+     * Reads messages from the store if it was not done yet.
+     * </p>
+     *
+     * @param store - store holding messages, may be null
+     */
+    synchronized void load(MessageStore store) {
+        if (loaded) return;
+        if (store != null) {
+            try {
+                publish(store.loadConversation(person).getMessages(), null);
+                if (fingerprints == null || tailFingerprinted) remember(snapshot().getMessages());
+            } catch (IOException e) {
+                System.err.println("ConversationLog could not load conversation with " + person.getNumber() + ": " + e.getMessage());
+            }
+        }
+        loaded = true;
+    }
+
+    /**
+     * <p>
+     * Appends messages and writes them to the store.
+     * </p>
+     *
+     * @param newMessages - messages to append
+     * @param store       - store to persist messages in, may be null
+     * @param deduplicate - true to drop messages already held, false if the messages are known to be new
+     * @return appended messages and position of the first of them in the conversation
+     */
+    synchronized ConversationSnapshot append(List<Message> newMessages, MessageStore store, boolean deduplicate) {
+        return append(new ArrayList<>(newMessages), null, store, deduplicate);
+    }
+
+    /**
+     * <p>
+     * Appends batch of messages sorted by their dates. Order of messages with equal dates is kept. Messages already
+     * held are dropped.
+     * </p>
+     *
+     * @param batch - messages to append, in any order
+     * @param store - store to persist messages in, may be null
+     * @return position of the first appended message in the conversation
+     */
+    synchronized int mergeByTime(List<Message> batch, MessageStore store) {
+        long[] batchTimes = new long[batch.size()];
+        List<Integer> order = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            batchTimes[i] = MessageDates.parse(batch.get(i).getDate());
+            order.add(i);
+        }
+        order.sort((a, b) -> Long.compare(batchTimes[a], batchTimes[b]));
+
+        List<Message> sorted = new ArrayList<>(batch.size());
+        long[] sortedTimes = new long[batch.size()];
+        for (int i = 0; i < order.size(); i++) {
+            sorted.add(batch.get(order.get(i)));
+            sortedTimes[i] = batchTimes[order.get(i)];
+        }
+        return append(sorted, sortedTimes, store, true).getFirstIndex();
+    }
+
+    /**
+     * <p>
+     * Returns messages with dates in the provided range, in time order. Loads the whole conversation.
+     * </p>
+     *
+     * @param from  - start of the range in epoch milliseconds, inclusive
+     * @param to    - end of the range in epoch milliseconds, exclusive
+     * @param store - store holding messages, may be null
+     * @return messages in the range
+     */
+    synchronized List<Message> messagesBetween(long from, long to, MessageStore store) {
+        load(store);
+        List<Message> found = new ArrayList<>();
+        History current = history;
+        long[] timeArray = times;
+        if (timeOrdered) {
+            for (int i = firstAtOrAfter(from, null); i < size && timeArray[i] < to; i++) found.add(current.get(i));
+        } else {
+            if (timeOrder == null) timeOrder = sortPositionsByTime();
+            for (int i = firstAtOrAfter(from, timeOrder); i < size && timeArray[timeOrder[i]] < to; i++)
+                found.add(current.get(timeOrder[i]));
+        }
+        return found;
+    }
+
+    /**
+     * @param copy       - messages to append, duplicates are removed from it
+     * @param batchTimes - parsed dates of messages or null, moved together with messages
+     */
+    private ConversationSnapshot append(List<Message> copy, long[] batchTimes, MessageStore store, boolean deduplicate) {
+        if (fingerprints == null) rememberRecent(store);
+        int kept = 0;
+        for (int i = 0; i < copy.size(); i++) {
+            long fingerprint = FingerprintSet.fingerprint(person, copy.get(i));
+            if (deduplicate && filter.mightContain(fingerprint) && fingerprints.contains(fingerprint)) {
+                Metrics.DUPLICATES.increment();
+                continue;
+            }
+            remember(fingerprint);
+            copy.set(kept, copy.get(i));
+            if (batchTimes != null) batchTimes[kept] = batchTimes[i];
+            kept++;
+        }
+        copy.subList(kept, copy.size()).clear();
+
+        int firstIndex;
+        if (loaded || store == null) {
+            firstIndex = size;
+            publish(copy, batchTimes);
+        } else {
+            firstIndex = storedCount(store);
+        }
+        persist(copy, store);
+        if (indexed && !copy.isEmpty()) searchIndex.add(person, firstIndex, copy);
+        return new ConversationSnapshot(person, firstIndex, firstIndex + copy.size(), Collections.unmodifiableList(copy));
+    }
+
+    /**
+     * <p>
+     * Appends messages from the provided full conversation that are past the number of messages already held.
+     * </p>
+     *
+     * @param allMessages - every message of the conversation, as known by the phone
+     * @param store       - store to persist messages in, may be null
+     */
+    synchronized void appendMissing(List<Message> allMessages, MessageStore store) {
+        if (fingerprints == null) rememberRecent(store);
+        int held = loaded || store == null ? size : storedCount(store);
+        if (allMessages.size() <= held) return;
+        List<Message> missing = new ArrayList<>(allMessages.subList(held, allMessages.size()));
+        if (loaded || store == null) publish(missing, null);
+        persist(missing, store);
+        if (indexed) searchIndex.add(person, held, missing);
+        for (Message message : missing) remember(FingerprintSet.fingerprint(person, message));
+    }
+
+    /**
+     * <p>
+     * Adds all messages held so far to the search index and collects their fingerprints, if it was not done yet.
+     * Conversation is not loaded into memory, stored messages are read only for indexing.
+     * </p>
+     *
+     * @param store - store holding messages, may be null
+     */
+    synchronized void indexStored(MessageStore store) {
+        if (indexed && fingerprints != null && !tailFingerprinted) return;
+        List<Message> all = held(store);
+        if (!indexed) searchIndex.add(person, 0, all);
+        if (fingerprints == null || tailFingerprinted) remember(all);
+        indexed = true;
+    }
+
+    private List<Message> held(MessageStore store) {
+        return loaded || store == null ? snapshot().getMessages() : readPage(0, Integer.MAX_VALUE, store).getMessages();
+    }
+
+    /**
+     * Creates fingerprint set of messages held so far, or of the stored tail if the conversation is not loaded.
+     */
+    private void rememberRecent(MessageStore store) {
+        if (loaded || store == null) {
+            remember(snapshot().getMessages());
+            return;
+        }
+        int total = storedCount(store);
+        remember(readPage(Math.max(0, total - FINGERPRINTED_TAIL), FINGERPRINTED_TAIL, store).getMessages());
+        tailFingerprinted = total > FINGERPRINTED_TAIL;
+    }
+
+    /**
+     * Creates fingerprint set of all messages held so far.
+     */
+    private void remember(List<Message> held) {
+        tailFingerprinted = false;
+        fingerprints = new FingerprintSet(held.size());
+        for (Message message : held) remember(FingerprintSet.fingerprint(person, message));
+    }
+
+    private void remember(long fingerprint) {
+        if (fingerprints.add(fingerprint)) filter.add(fingerprint);
+    }
+
+    private ConversationSnapshot slice(int from, int count) {
+        int total = size;
+        History current = history;
+        int start = Math.max(0, Math.min(from, total));
+        int end = (int) Math.min(total, (long) start + count);
+        List<Message> page = Collections.unmodifiableList(new ArrayList<>(new HistoryList(current, end).subList(start, end)));
+        return new ConversationSnapshot(person, start, total, page);
+    }
+
+    private ConversationSnapshot readPage(int from, int count, MessageStore store) {
+        int total = storedCount(store);
+        int start = Math.max(0, Math.min(from, total));
+        List<Message> page = Collections.emptyList();
+        try {
+            page = Collections.unmodifiableList(store.loadMessages(person, start, count));
+        } catch (IOException e) {
+            System.err.println("ConversationLog could not read messages of " + person.getNumber() + ": " + e.getMessage());
+        }
+        return new ConversationSnapshot(person, start, total, page);
+    }
+
+    private int storedCount(MessageStore store) {
+        try {
+            return store.getMessageCount(person);
+        } catch (IOException e) {
+            System.err.println("ConversationLog could not read message count of " + person.getNumber() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @return index (in positions, or in order if provided) of the first message not older than time
+     */
+    private int firstAtOrAfter(long time, int[] order) {
+        long[] timeArray = times;
+        int low = 0, high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timeArray[order == null ? middle : order[middle]] < time) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private int[] sortPositionsByTime() {
+        List<Integer> positions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) positions.add(i);
+        long[] array = times;
+        positions.sort((a, b) -> Long.compare(array[a], array[b]));
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) order[i] = positions.get(i);
+        return order;
+    }
+
+    /**
+     * @param batchTimes - parsed dates of new messages or null if they should be parsed here
+     */
+    private void publish(List<Message> newMessages, long[] batchTimes) {
+        int newSize = size + newMessages.size();
+        History current = history;
+        Message[] array = current.hot;
+        int hotSize = size - current.coldCount;
+        if (hotSize + newMessages.size() > array.length)
+            array = Arrays.copyOf(array, Math.max(hotSize + newMessages.size(), array.length + (array.length >> 1) + 16));
+        long[] timeArray = times;
+        if (newSize > timeArray.length)
+            timeArray = Arrays.copyOf(timeArray, Math.max(newSize, timeArray.length + (timeArray.length >> 1) + 16));
+        long last = size == 0 ? MessageDates.UNKNOWN : timeArray[size - 1];
+        for (int i = 0; i < newMessages.size(); i++) {
+            long time = batchTimes != null ? batchTimes[i] : MessageDates.parse(newMessages.get(i).getDate());
+            if (time < last) timeOrdered = false;
+            last = time;
+            array[hotSize + i] = newMessages.get(i);
+            timeArray[size + i] = time;
+        }
+        timeOrder = null;
+        if (array != current.hot) history = new History(current.cold, array);
+        times = timeArray;
+        size = newSize;
+        evict();
+    }
+
+    /**
+     * Moves whole blocks of the oldest messages on the heap to ColdHistory, keeping at least HOT_MESSAGES.
+     */
+    private void evict() {
+        History current = history;
+        int hotSize = size - current.coldCount;
+        if (pinned || hotSize < HOT_MESSAGES + ColdHistory.BLOCK_SIZE) return;
+        int moved = (hotSize - HOT_MESSAGES) / ColdHistory.BLOCK_SIZE * ColdHistory.BLOCK_SIZE;
+        ColdHistory cold = current.cold.append(current.hot, moved);
+        // Room for a block of new messages, so that the next appends do not copy the array
+        Message[] hot = Arrays.copyOfRange(current.hot, moved, hotSize + ColdHistory.BLOCK_SIZE);
+        history = new History(cold, hot);
+    }
+
+    private void persist(List<Message> newMessages, MessageStore store) {
+        if (store == null || newMessages.isEmpty()) return;
+        try {
+            store.append(person, newMessages);
+        } catch (IOException e) {
+            System.err.println("ConversationLog could not store messages of " + person.getNumber() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Messages of the conversation: cold ones followed by hot ones, starting at position coldCount. Never changes after
+     * it is published, except for messages appended to the hot array past the published size.
+     */
+    private static final class History {
+        private final ColdHistory cold;
+        private final int coldCount;
+        private final Message[] hot;
+
+        History(ColdHistory cold, Message[] hot) {
+            this.cold = cold;
+            this.coldCount = cold.size();
+            this.hot = hot;
+        }
+
+        Message get(int index) {
+            return index < coldCount ? cold.get(index) : hot[index - coldCount];
+        }
+    }
+
+    /**
+     * Read-only list of the first size messages of a history.
+     */
+    private static final class HistoryList extends AbstractList<Message> implements RandomAccess {
+        private final History history;
+        private final int size;
+
+        HistoryList(History history, int size) {
+            this.history = history;
+            this.size = size;
+        }
+
+        @Override
+        public Message get(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            return history.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package engine;
+
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Immutable view of a conversation at some point in time. It is safe to read from any thread while new messages are
+ * being added to the database.
+ * </p>
+ * <p>
+ * Snapshot may contain only a part (page) of the conversation, in which case getFirstIndex tells where the page
+ * starts and getTotalCount how many messages the whole conversation had when the snapshot was taken.
+ * </p>
+ */
+public class ConversationSnapshot {
+    private final Person person;
+    private final int firstIndex;
+    private final int totalCount;
+    private final List<Message> messages;
+
+    ConversationSnapshot(Person person, List<Message> messages) {
+        this(person, 0, messages.size(), messages);
+    }
+
+    ConversationSnapshot(Person person, int firstIndex, int totalCount, List<Message> messages) {
+        this.person = person;
+        this.firstIndex = firstIndex;
+        this.totalCount = totalCount;
+        this.messages = messages;
+    }
+
+    public Person getPerson() {
+        return person;
+    }
+
+    /**
+     * @return position of the first message of this snapshot in the whole conversation
+     */
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * @return number of messages in the whole conversation
+     */
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * <p>
+     * Returns messages in the order they were added. The list cannot be modified.
+     * </p>
+     *
+     * @return list of messages
+     */
+    public List<Message> getMessages() {
+        return messages;
+    }
+}
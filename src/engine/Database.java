@@ -1,48 +1,388 @@
 package engine;
 
-import com.sun.org.apache.xml.internal.security.signature.ReferenceNotInitializedException;
 import informer_api.conversation.Conversation;
 import informer_api.conversation.Message;
 import informer_api.conversation.Person;
 
-import java.io.Serializable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * <p>
  * Class for storing all conversation information.
  * </p>
+ * <p>
+ * Database can be safely used from many threads: messages received from the phone are added while the gui reads
+ * conversations. Every conversation is kept in its own ConversationLog, so writers lock only the conversation they
+ * modify and readers get immutable snapshots without locking.
+ * </p>
+ * <p>
+ * Database can be backed by MessageStore. In that case every new message is also appended to the store, and
+ * conversations kept on disk are loaded into memory only when they are needed for the first time.
+ * </p>
+ * <p>
+ * All messages are also added to the search index. Messages received during this run are indexed as they come, while
+ * history kept in the store is indexed by buildSearchIndex. Indexing is done by the executor provided to the
+ * constructor.
+ * </p>
+ * <p>
+ * People are also kept in ContactIndex, which is told about the newest message of every merge.
+ * </p>
+ * <p>
+ * Messages received from the phone that are already held are dropped, see ConversationLog.
+ * </p>
+ * <p>
+ * Loaded conversations keep only their most recent messages on the heap, except for the opened one, see
+ * setOpenedConversation.
+ * </p>
+ * <p>
+ * Photos of people are interned in PhotoStore, and a person received again without changes is replaced by the one
+ * already held, so every synchronization does not leave another copy of every contact and photo on the heap.
+ * </p>
  * Created by Piotr Waszkiewicz on 30.01.17.
  */
-class Database implements Serializable {
-    private HashMap<Person, Conversation> conversations;
+class Database {
+    private final ConcurrentHashMap<Person, ConversationLog> conversations = new ConcurrentHashMap<>();
+    private final MessageStore store;
+    private final SearchIndex searchIndex;
+    private final ContactIndex contacts = new ContactIndex(ContactIndex.Order.RECENT);
+    private final FingerprintFilter fingerprints = new FingerprintFilter();
+    private final PhotoStore photos;
+    private ConversationLog opened;
+
+    /**
+     * @param conversations - initial conversations
+     * @param indexer       - executor running search index updates
+     */
+    Database(Map<Person, Conversation> conversations, Executor indexer) {
+        this.store = null;
+        this.photos = new PhotoStore();
+        this.searchIndex = new SearchIndex(indexer);
+        mergeSnapshot(conversations);
+    }
+
+    /**
+     * <p>
+     * Creates database showing conversations kept in the provided store. Messages are not read until requested.
+     * </p>
+     *
+     * @param store   - opened message store
+     * @param indexer - executor running search index updates
+     */
+    Database(MessageStore store, Executor indexer) {
+        this.store = store;
+        this.photos = store.getPhotos();
+        this.searchIndex = new SearchIndex(indexer);
+        Map<Person, Long> times = new HashMap<>();
+        for (Person person : store.getPeople()) {
+            conversations.put(person, new ConversationLog(person, false, searchIndex, fingerprints));
+            try {
+                Message last = store.getLastMessage(person);
+                times.put(person, last == null ? MessageDates.UNKNOWN : MessageDates.parse(last.getDate()));
+            } catch (IOException e) {
+                System.err.println("Database could not read last message of " + person.getNumber() + ": " + e.getMessage());
+                times.put(person, MessageDates.UNKNOWN);
+            }
+        }
+        contacts.updateAll(times);
+    }
+
+    /**
+     * @return contact list ordered as configured, updated by every merge
+     */
+    ContactIndex getContacts() {
+        return contacts;
+    }
+
+    /**
+     * @return store holding photos of all people
+     */
+    PhotoStore getPhotos() {
+        return photos;
+    }
+
+    /**
+     * <p>
+     * Returns everybody the database holds conversations with, including those not loaded into memory yet.
+     * </p>
+     *
+     * @return list of people
+     */
+    List<Person> getPeople() {
+        List<Person> people = new ArrayList<>(conversations.size());
+        for (ConversationLog log : conversations.values()) people.add(log.getPerson());
+        return people;
+    }
+
+    /**
+     * <p>
+     * Returns snapshot of the conversation with the provided person.
+     * </p>
+     *
+     * @param person - conversation participant
+     * @return immutable conversation snapshot or null if there is no such conversation
+     */
+    ConversationSnapshot getConversationWithPerson(Person person) {
+        ConversationLog log = conversations.get(person);
+        if (log == null) return null;
+        log.load(store);
+        return log.snapshot();
+    }
+
+    /**
+     * <p>
+     * Keeps messages of the conversation shown to the user on the heap, and lets the previously shown one move its
+     * older messages off the heap.
+     * </p>
+     *
+     * @param person - participant of the opened conversation, null if none is opened
+     */
+    synchronized void setOpenedConversation(Person person) {
+        ConversationLog log = person == null ? null : conversations.get(person);
+        if (log == opened) return;
+        if (opened != null) opened.setPinned(false);
+        opened = log;
+        if (log != null) log.setPinned(true);
+    }
 
-    Database(Map<Person, Conversation> conversations) {
-        this.conversations = new HashMap<>(conversations);
+    /**
+     * @return memory taken by conversation history kept outside of the heap in bytes
+     */
+    long getColdBytes() {
+        long bytes = 0;
+        for (ConversationLog log : conversations.values()) bytes += log.getColdBytes();
+        return bytes;
     }
 
-    HashMap<Person, Conversation> getConversations() {
-        return conversations;
+    /**
+     * <p>
+     * Returns page of the conversation with the provided person. Conversation is not loaded into memory as a whole.
+     * </p>
+     *
+     * @param person - conversation participant
+     * @param from   - position of the first message
+     * @param count  - maximal number of messages
+     * @return page of the conversation or null if there is no such conversation
+     */
+    ConversationSnapshot getMessages(Person person, int from, int count) {
+        ConversationLog log = conversations.get(person);
+        return log == null ? null : log.page(from, count, store);
     }
 
-    Conversation getConversationWithPerson(Person person) {
-        Conversation conversation = null;
-        if (conversations.containsKey(person)) conversation = conversations.get(person);
-        return conversation;
+    /**
+     * <p>
+     * Returns the most recent messages of the conversation with the provided person.
+     * </p>
+     *
+     * @param person - conversation participant
+     * @param count  - maximal number of messages
+     * @return page of the conversation or null if there is no such conversation
+     */
+    ConversationSnapshot getRecentMessages(Person person, int count) {
+        ConversationLog log = conversations.get(person);
+        return log == null ? null : log.recentPage(count, store);
     }
 
-    void addNewMessages(Conversation newMessages) {
-        Person conversationWith = newMessages.getPerson();
-        if (conversations.containsKey(conversationWith)) {
-            for (Message m : newMessages.getMessages())
-                conversations.get(conversationWith).addMessage(m);
-        } else {
-            conversations.put(conversationWith, newMessages);
+    /**
+     * <p>
+     * Returns messages exchanged with the provided person in the provided time range. Loads the whole conversation.
+     * </p>
+     *
+     * @param person - conversation participant
+     * @param from   - start of the range in epoch milliseconds, inclusive
+     * @param to     - end of the range in epoch milliseconds, exclusive
+     * @return messages in time order, empty if there is no such conversation
+     */
+    List<Message> getMessagesBetween(Person person, long from, long to) {
+        ConversationLog log = conversations.get(person);
+        return log == null ? new ArrayList<>() : log.messagesBetween(from, to, store);
+    }
+
+    /**
+     * <p>
+     * Returns watermarks describing stored part of every conversation, keyed by person's phone number.
+     * </p>
+     *
+     * @return map of phone numbers and watermarks
+     */
+    Map<String, Watermark> getWatermarks() {
+        Map<String, Watermark> watermarks = new HashMap<>();
+        for (ConversationLog log : conversations.values()) {
+            Person person = log.getPerson();
+            if (log.isLoaded() || store == null) {
+                List<Message> messages = log.snapshot().getMessages();
+                String lastDate = messages.isEmpty() ? null : messages.get(messages.size() - 1).getDate();
+                watermarks.put(person.getNumber(), new Watermark(messages.size(), lastDate));
+            } else {
+                try {
+                    Message last = store.getLastMessage(person);
+                    watermarks.put(person.getNumber(), new Watermark(store.getMessageCount(person),
+                            last == null ? null : last.getDate()));
+                } catch (IOException e) {
+                    System.err.println("Database could not read watermark of " + person.getNumber() + ": " + e.getMessage());
+                }
+            }
+        }
+        return watermarks;
+    }
+
+    /**
+     * <p>
+     * Merges full snapshot of conversations received from the phone. Messages already stored are kept and only those
+     * past the stored count are appended. Conversations with unknown people are added as a whole.
+     * </p>
+     *
+     * @param snapshot - all conversations sent by the phone
+     */
+    void mergeSnapshot(Map<Person, Conversation> snapshot) {
+        Map<Person, Long> times = new HashMap<>();
+        for (Map.Entry<Person, Conversation> entry : snapshot.entrySet()) {
+            List<Message> messages = entry.getValue().getMessages();
+            ConversationLog log = logFor(entry.getKey());
+            log.appendMissing(messages, store);
+            // Phone sends conversations in time order, so the last message is the newest one
+            times.put(log.getPerson(), messages.isEmpty() ? MessageDates.UNKNOWN :
+                    MessageDates.parse(messages.get(messages.size() - 1).getDate()));
+        }
+        contacts.updateAll(times);
+    }
+
+    /**
+     * <p>
+     * Merges messages missing on the PC, sent by the phone in response to watermarks. Phone may send them in any
+     * order, so every batch is appended sorted by date. Messages already held are dropped.
+     * </p>
+     *
+     * @param delta - conversation containing only missing messages
+     */
+    void mergeDelta(Conversation delta) {
+        ConversationLog log = logFor(delta.getPerson());
+        log.mergeByTime(delta.getMessages(), store);
+        contacts.update(log.getPerson(), latestTime(delta.getMessages()));
+    }
+
+    /**
+     * <p>
+     * Appends new messages to the conversation, creating it if this is the first message from the person. Messages
+     * that are already held (resent by the phone) are dropped.
+     * </p>
+     *
+     * @param newMessages - conversation containing only new messages
+     * @return messages that were appended and position of the first of them in the whole conversation
+     */
+    ConversationSnapshot addNewMessages(Conversation newMessages) {
+        return append(newMessages, true);
+    }
+
+    /**
+     * <p>
+     * Appends messages sent from the PC. They are never dropped, even if the same text was sent a moment ago.
+     * </p>
+     *
+     * @param sent - conversation containing only sent messages
+     * @return messages that were appended and position of the first of them in the whole conversation
+     */
+    ConversationSnapshot addSentMessages(Conversation sent) {
+        return append(sent, false);
+    }
+
+    private ConversationSnapshot append(Conversation newMessages, boolean deduplicate) {
+        ConversationLog log = logFor(newMessages.getPerson());
+        ConversationSnapshot appended = log.append(newMessages.getMessages(), store, deduplicate);
+        contacts.update(log.getPerson(), latestTime(appended.getMessages()));
+        return appended;
+    }
+
+    /**
+     * <p>
+     * Adds history kept in the store to the search index. Messages are read conversation by conversation and are not
+     * kept in memory. This can take a while, so it should be invoked on a background thread.
+     * </p>
+     */
+    void buildSearchIndex() {
+        for (ConversationLog log : conversations.values()) log.indexStored(store);
+    }
+
+    /**
+     * <p>
+     * Finds messages containing every word of the query, see SearchIndex.
+     * </p>
+     *
+     * @param query      - words to look for
+     * @param maxResults - maximal number of results
+     * @return found messages
+     */
+    List<SearchResult> search(String query, int maxResults) {
+        List<SearchResult> found = searchIndex.search(query, maxResults);
+        // Results of a single conversation are next to each other, newest first, so each conversation is read once
+        List<SearchResult> results = new ArrayList<>(found.size());
+        int start = 0;
+        while (start < found.size()) {
+            Person person = found.get(start).getPerson();
+            int end = start;
+            while (end < found.size() && found.get(end).getPerson().equals(person)) end++;
+            int[] positions = new int[end - start];
+            for (int i = 0; i < positions.length; i++) positions[i] = found.get(end - 1 - i).getMessageIndex();
+
+            ConversationLog log = conversations.get(person);
+            Message[] messages = log == null ? new Message[positions.length] : log.messagesAt(positions, store);
+            for (int i = positions.length - 1; i >= 0; i--)
+                results.add(new SearchResult(person, positions[i], messages[i]));
+            start = end;
+        }
+        return results;
+    }
+
+    /**
+     * <p>
+     * Forces all stored data to disk and closes the store.
+     * </p>
+     */
+    void close() {
+        if (store != null) store.close();
+    }
+
+    /**
+     * Photos are interned, so equal photos are the same array.
+     */
+    private static boolean sameDetails(Person held, Person person) {
+        if (held == person) return true;
+        String nickname = held.getNickname();
+        return held.getPhoto() == person.getPhoto() &&
+                (nickname == null ? person.getNickname() == null : nickname.equals(person.getNickname()));
+    }
+
+    private static long latestTime(List<Message> messages) {
+        long latest = MessageDates.UNKNOWN;
+        for (Message message : messages) latest = Math.max(latest, MessageDates.parse(message.getDate()));
+        return latest;
+    }
+
+    /**
+     * <p>
+     * Returns log of the conversation with the provided person, creating it if needed. If the person object differs
+     * from the known one (updated nickname or photo), it replaces the old one.
+     * </p>
+     */
+    private ConversationLog logFor(Person received) {
+        Person person = photos.intern(received);
+        ConversationLog log = conversations.computeIfAbsent(person,
+                created -> new ConversationLog(created, true, searchIndex, fingerprints));
+        if (sameDetails(log.getPerson(), person)) person = log.getPerson();
+        else log.setPerson(person);
+
+        if (store != null) {
             try {
-                MainEngine.getInstance().synchronizeDatabase(conversations);
-            } catch (ReferenceNotInitializedException e) {
+                store.savePerson(person);
+            } catch (IOException e) {
+                System.err.println("Database could not store " + person.getNumber() + ": " + e.getMessage());
             }
         }
+        return log;
     }
 }
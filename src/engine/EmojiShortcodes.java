@@ -0,0 +1,221 @@
+package engine;
+
+import com.vdurmont.emoji.Emoji;
+import com.vdurmont.emoji.EmojiManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Converts emoji shortcodes (like :smile:) into emoji characters.
+ * </p>
+ * <p>
+ * Aliases of all emoji known to emoji-java are put once into a compact trie kept in a few primitive arrays, every
+ * node storing its character, first child and next sibling. Conversion walks the trie from a colon, so it needs no
+ * regular expressions and looks only at characters that can form a shortcode. This makes it cheap enough to run on
+ * every key press around the caret.
+ * </p>
+ * <p>
+ * Trie is built on first use. Building it loads emoji-java data, so preload() can be used to do that on a background
+ * thread. Instance is immutable and thread-safe.
+ * </p>
+ */
+public class EmojiShortcodes {
+    private static final char DELIMITER = ':';
+    private static volatile EmojiShortcodes instance;
+
+    private final char[] labels;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] values;
+    private final String[] emojis;
+    private final int maxAliasLength;
+    private int nodeCount;
+
+    /**
+     * <p>
+     * Get instance of the converter, building the trie if needed.
+     * </p>
+     *
+     * @return converter instance
+     */
+    public static EmojiShortcodes getInstance() {
+        if (instance == null) {
+            synchronized (EmojiShortcodes.class) {
+                if (instance == null) instance = new EmojiShortcodes(loadAliases());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * <p>
+     * Builds the trie on a background thread, so that the first key press does not have to wait for it.
+     * </p>
+     */
+    public static void preload() {
+        Thread loader = new Thread(EmojiShortcodes::getInstance, "EmojiShortcodes loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    EmojiShortcodes(SortedMap<String, String> aliases) {
+        int characters = 0, longest = 0;
+        for (String alias : aliases.keySet()) {
+            characters += alias.length();
+            longest = Math.max(longest, alias.length());
+        }
+        labels = new char[characters + 1];
+        firstChild = new int[characters + 1];
+        nextSibling = new int[characters + 1];
+        values = new int[characters + 1];
+        emojis = aliases.values().toArray(new String[0]);
+        maxAliasLength = longest;
+
+        List<String> sorted = new ArrayList<>(aliases.keySet());
+        int root = newNode('\0');
+        build(root, sorted, 0, sorted.size(), 0);
+    }
+
+    /**
+     * <p>
+     * Replaces every shortcode in the text with its emoji.
+     * </p>
+     *
+     * @param text - text to convert
+     * @return converted text, the same instance if there was nothing to convert
+     */
+    public String convertAll(String text) {
+        StringBuilder converted = null;
+        int copied = 0;
+        for (int i = text.indexOf(DELIMITER); i >= 0 && i < text.length(); ) {
+            int end = text.indexOf(DELIMITER, i + 1);
+            if (end < 0) break;
+            int value = end - i - 1 <= maxAliasLength ? find(text, i + 1, end) : -1;
+            if (value < 0) {
+                i = end;
+                continue;
+            }
+            if (converted == null) converted = new StringBuilder(text.length());
+            converted.append(text, copied, i).append(emojis[value]);
+            copied = end + 1;
+            i = text.indexOf(DELIMITER, copied);
+        }
+        if (converted == null) return text;
+        return converted.append(text, copied, text.length()).toString();
+    }
+
+    /**
+     * <p>
+     * Finds shortcode ending right before the provided position, which is what happens when user types closing colon.
+     * Only characters between the position and the nearest preceding colon are examined.
+     * </p>
+     *
+     * @param text - text being edited
+     * @param end  - position right after the closing colon, usually caret position
+     * @return found shortcode or null if text does not end with a complete one
+     */
+    public Match findEndingAt(CharSequence text, int end) {
+        if (end < 2 || end > text.length() || text.charAt(end - 1) != DELIMITER) return null;
+        int limit = Math.max(0, end - 2 - maxAliasLength);
+        for (int start = end - 2; start >= limit; start--) {
+            if (text.charAt(start) != DELIMITER) continue;
+            int value = find(text, start + 1, end - 1);
+            return value < 0 ? null : new Match(start, end, emojis[value]);
+        }
+        return null;
+    }
+
+    /**
+     * <p>
+     * Shortcode found in a text.
+     * </p>
+     */
+    public static class Match {
+        private final int start, end;
+        private final String emoji;
+
+        Match(int start, int end, String emoji) {
+            this.start = start;
+            this.end = end;
+            this.emoji = emoji;
+        }
+
+        /**
+         * @return position of the opening colon
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * @return position right after the closing colon
+         */
+        public int getEnd() {
+            return end;
+        }
+
+        public String getEmoji() {
+            return emoji;
+        }
+    }
+
+    /**
+     * @return index of emoji with alias equal to text between from and to, or -1 if there is none
+     */
+    private int find(CharSequence text, int from, int to) {
+        if (from >= to) return -1;
+        int node = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            int child = firstChild[node];
+            while (child != 0 && labels[child] != c) child = nextSibling[child];
+            if (child == 0) return -1;
+            node = child;
+        }
+        return values[node];
+    }
+
+    /**
+     * <p>
+     * Adds children of the node for aliases in range [from, to) of the sorted list, all sharing the first depth
+     * characters.
+     * </p>
+     */
+    private void build(int node, List<String> sorted, int from, int to, int depth) {
+        int previousChild = 0;
+        int i = from;
+        if (i < to && sorted.get(i).length() == depth) i++;
+        while (i < to) {
+            char c = sorted.get(i).charAt(depth);
+            int groupEnd = i;
+            while (groupEnd < to && sorted.get(groupEnd).charAt(depth) == c) groupEnd++;
+
+            int child = newNode(c);
+            if (previousChild == 0) firstChild[node] = child;
+            else nextSibling[previousChild] = child;
+            previousChild = child;
+            // Emojis are in the same order as sorted aliases, so index of the alias is index of its emoji
+            if (sorted.get(i).length() == depth + 1) values[child] = i;
+            build(child, sorted, i, groupEnd, depth + 1);
+            i = groupEnd;
+        }
+    }
+
+    private int newNode(char label) {
+        int node = nodeCount++;
+        labels[node] = label;
+        values[node] = -1;
+        return node;
+    }
+
+    private static SortedMap<String, String> loadAliases() {
+        SortedMap<String, String> aliases = new TreeMap<>();
+        for (Emoji emoji : EmojiManager.getAll())
+            for (String alias : emoji.getAliases()) aliases.put(alias, emoji.getUnicode());
+        return aliases;
+    }
+}
@@ -0,0 +1,112 @@
+package engine;
+
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Receiver of everything MainEngine wants to show to the user: the main window or a headless front end.
+ * </p>
+ * <p>
+ * Methods are invoked through the executor provided together with the listener (see MainEngine.setListener), one at
+ * a time and in the order of events.
+ * </p>
+ */
+public interface EngineListener {
+    /**
+     * <p>
+     * Informs about connection with the phone being established or lost.
+     * </p>
+     *
+     * @param isConnected - true if phone is connected
+     */
+    void connectionStateChanged(boolean isConnected);
+
+    /**
+     * <p>
+     * Replaces the whole contact list. Later changes are passed as contactInserted and contactMoved.
+     * </p>
+     *
+     * @param people - everybody the database holds conversations with, in the order of the contact list
+     */
+    void loadPeople(List<Person> people);
+
+    /**
+     * <p>
+     * Adds person who just sent or received the first message to the contact list.
+     * </p>
+     *
+     * @param person - new conversation participant
+     * @param index  - position of the person on the list after the insert
+     */
+    void contactInserted(Person person, int index);
+
+    /**
+     * <p>
+     * Moves person on the contact list, for example to the top after a new message.
+     * </p>
+     *
+     * @param person - conversation participant
+     * @param from   - position of the person before the move
+     * @param to     - position of the person after the move, counted after removing them from the previous one
+     */
+    void contactMoved(Person person, int from, int to);
+
+    /**
+     * <p>
+     * Passes the most recent page of a conversation that was opened.
+     * </p>
+     *
+     * @param conversation - page of the conversation
+     */
+    void loadConversation(ConversationSnapshot conversation);
+
+    /**
+     * <p>
+     * Passes page of the opened conversation requested with MainEngine.loadMessages.
+     * </p>
+     *
+     * @param page - page of the conversation
+     */
+    void showPage(ConversationSnapshot page);
+
+    /**
+     * <p>
+     * Passes page of a conversation that was opened at the provided message.
+     * </p>
+     *
+     * @param page         - page of the conversation containing the message
+     * @param messageIndex - position of the message in the whole conversation
+     */
+    void showConversationAt(ConversationSnapshot page, int messageIndex);
+
+    /**
+     * <p>
+     * Informs about messages received from the phone.
+     * </p>
+     *
+     * @param newMessages - person and their new messages
+     */
+    void showNewMessageInformation(Conversation newMessages);
+
+    /**
+     * <p>
+     * Passes messages added to the opened conversation, both received and sent.
+     * </p>
+     *
+     * @param person      - conversation participant
+     * @param firstIndex  - position of the first message in the whole conversation
+     * @param newMessages - added messages
+     */
+    void appendMessages(Person person, int firstIndex, List<Message> newMessages);
+
+    /**
+     * <p>
+     * Informs that all displayed data is no longer valid, for example because the server is restarting.
+     * </p>
+     */
+    void clearAllViews();
+}
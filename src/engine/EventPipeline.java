@@ -0,0 +1,204 @@
+package engine;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Stages through which events received from the phone travel after they were decoded by the connection thread.
+ * </p>
+ * <p>
+ * Every stage has its own queue and a single worker, so events are handled in the order they were submitted:
+ * <ul>
+ * <li>store - merges messages into the database and persists them,</li>
+ * <li>index - adds stored messages to the search index,</li>
+ * <li>search - runs queries typed by the user, so they neither block the gui thread nor wait for merges,</li>
+ * <li>publish - passes results to the gui. Tasks queued at the same time are run in a single task of the gui executor
+ * (Platform.runLater for the main window), so a burst of messages does not flood the JavaFX event queue.</li>
+ * </ul>
+ * Thanks to that the connection thread only hands decoded objects over and goes back to reading, and database merges
+ * never wait for the gui. Queues of the store and index stages are bounded and submitting to a full one waits, which
+ * slows the phone down instead of using unbounded memory. Publish stage and tasks waiting for the gui are not bounded:
+ * the gui thread submits to the store stage itself, so a store stage waiting for the gui could deadlock with it.
+ * Published tasks are small and come at most as fast as the store stage produces them.
+ * </p>
+ * <p>
+ * Workers are virtual threads when the runtime supports them, daemon platform threads otherwise.
+ * </p>
+ * <p>
+ * Time from submitting a task to its completion (store) or execution (publish) is recorded in Metrics.
+ * </p>
+ */
+class EventPipeline {
+    static final int DEFAULT_CAPACITY = 1024;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final ThreadPoolExecutor store, index, search, publish;
+    private final BlockingQueue<Runnable> guiTasks;
+    private final AtomicBoolean guiDrainScheduled = new AtomicBoolean();
+    private volatile Executor guiExecutor = Runnable::run;
+
+    /**
+     * @param capacity - maximal number of tasks waiting in the store and index stages
+     */
+    EventPipeline(int capacity) {
+        store = createStage("EventPipeline store", new ArrayBlockingQueue<>(capacity));
+        index = createStage("EventPipeline index", new ArrayBlockingQueue<>(capacity));
+        search = createStage("EventPipeline search", new LinkedBlockingQueue<>());
+        publish = createStage("EventPipeline publish", new LinkedBlockingQueue<>());
+        guiTasks = new LinkedBlockingQueue<>();
+    }
+
+    /**
+     * <p>
+     * Queues task modifying the database.
+     * </p>
+     *
+     * @param task - task to run on the store stage
+     */
+    void store(Runnable task) {
+        long submitted = System.nanoTime();
+        store.execute(() -> {
+            task.run();
+            Metrics.STORE_LATENCY.record(System.nanoTime() - submitted);
+        });
+    }
+
+    /**
+     * @return executor of the index stage
+     */
+    Executor indexer() {
+        return index;
+    }
+
+    /**
+     * <p>
+     * Queues search query. Submitting never waits, so queries may be submitted from the gui thread.
+     * </p>
+     *
+     * @param query - task running the query and publishing its results
+     */
+    void search(Runnable query) {
+        search.execute(query);
+    }
+
+    /**
+     * <p>
+     * Sets executor running published tasks. Until it is set they are run by the publish stage itself, which suits
+     * front ends without an event thread of their own.
+     * </p>
+     *
+     * @param executor - for example Platform::runLater
+     */
+    void setGuiExecutor(Executor executor) {
+        guiExecutor = executor;
+    }
+
+    /**
+     * <p>
+     * Queues task that has to be run by the gui executor.
+     * </p>
+     *
+     * @param guiTask - task updating the gui
+     */
+    void publish(Runnable guiTask) {
+        long submitted = System.nanoTime();
+        publish.execute(() -> {
+            guiTasks.add(() -> {
+                Metrics.GUI_LATENCY.record(System.nanoTime() - submitted);
+                guiTask.run();
+            });
+            if (!guiDrainScheduled.getAndSet(true)) guiExecutor.execute(this::drainGuiTasks);
+        });
+    }
+
+    /**
+     * <p>
+     * Waits until the store and index stages handle tasks queued so far and stops all stages. Search and publish
+     * stages are not waited for, tasks they pass on are run by the gui executor, which may be the thread invoking
+     * shutdown.
+     * </p>
+     */
+    void shutdown() {
+        search.shutdown();
+        publish.shutdown();
+        for (ThreadPoolExecutor stage : new ThreadPoolExecutor[]{store, index}) {
+            stage.shutdown();
+            try {
+                if (!stage.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                    System.err.println("EventPipeline: stage did not finish in time, " + stage);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void drainGuiTasks() {
+        guiDrainScheduled.set(false);
+        List<Runnable> tasks = new ArrayList<>(guiTasks.size());
+        guiTasks.drainTo(tasks);
+        for (Runnable task : tasks) runSafely(task);
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println("EventPipeline: " + e);
+        }
+    }
+
+    /**
+     * <p>
+     * Creates single worker stage. When a bounded queue is full, submitting thread waits for space in it.
+     * </p>
+     */
+    private static ThreadPoolExecutor createStage(String name, BlockingQueue<Runnable> queue) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue,
+                threadFactory(name), (task, executor) -> {
+            if (executor.isShutdown()) return;
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }) {
+            @Override
+            protected void afterExecute(Runnable task, Throwable thrown) {
+                if (thrown != null) System.err.println("EventPipeline: " + thrown);
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Returns factory of virtual threads if the runtime has them (Java 21+). Reflection is used, so the code still
+     * compiles and runs on Java 8.
+     * </p>
+     */
+    private static ThreadFactory threadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
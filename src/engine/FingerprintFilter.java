@@ -0,0 +1,106 @@
+package engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Bloom filter of fingerprints of every message in the database, checked before the fingerprint set of the
+ * conversation. Nearly every new message is not in the filter, so it is accepted after reading a few bits.
+ * </p>
+ * <p>
+ * Filter never answers that a fingerprint it was given is missing, but may answer that a missing one is present,
+ * which only costs a lookup in the set. Bloom filter cannot be resized, so once a layer holds as many fingerprints as
+ * it was sized for, a new layer twice as big and with half the false positive rate is added (scalable Bloom filter).
+ * Total false positive rate stays below twice the rate of the first layer. Layers are rounded up to a power of two
+ * bits, so a message takes 10 to 25 bits.
+ * </p>
+ * <p>
+ * Filter is shared by all conversations, so it is synchronized.
+ * </p>
+ */
+class FingerprintFilter {
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final double INITIAL_FALSE_POSITIVES = 0.01;
+
+    private final List<Layer> layers = new ArrayList<>();
+    private Layer last;
+
+    FingerprintFilter() {
+        last = new Layer(INITIAL_CAPACITY, INITIAL_FALSE_POSITIVES);
+        layers.add(last);
+    }
+
+    synchronized void add(long fingerprint) {
+        if (last.count >= last.capacity) {
+            last = new Layer(last.capacity * 2, last.falsePositives / 2);
+            layers.add(last);
+        }
+        last.add(fingerprint);
+    }
+
+    /**
+     * @return false if the fingerprint was never added, true if it probably was
+     */
+    synchronized boolean mightContain(long fingerprint) {
+        for (Layer layer : layers) if (layer.contains(fingerprint)) return true;
+        return false;
+    }
+
+    /**
+     * @return memory taken by bits of the filter in bytes
+     */
+    synchronized long getBytes() {
+        long bytes = 0;
+        for (Layer layer : layers) bytes += layer.bits.length * 8L;
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FingerprintFilter[layers=" + layers.size() + ", bytes=" + getBytes() + "]";
+    }
+
+    /**
+     * Classic Bloom filter. Positions of bits are derived from the two halves of the fingerprint (double hashing),
+     * which is already well mixed.
+     */
+    private static class Layer {
+        private static final int MAX_WORDS = 1 << 24;
+        private final long[] bits;
+        private final int mask;
+        private final int hashes;
+        private final long capacity;
+        private final double falsePositives;
+        private long count;
+
+        Layer(long capacity, double falsePositives) {
+            this.capacity = capacity;
+            this.falsePositives = falsePositives;
+            // Optimal size is -n ln p / (ln 2)^2 bits and optimal number of hashes -log2 p, size rounded up to power of 2
+            double optimalBits = -capacity * Math.log(falsePositives) / (Math.log(2) * Math.log(2));
+            int words = Integer.highestOneBit((int) Math.min(MAX_WORDS, Math.ceil(optimalBits / 64)) * 2 - 1);
+            bits = new long[words];
+            mask = words * 64 - 1;
+            hashes = (int) Math.ceil(-Math.log(falsePositives) / Math.log(2));
+        }
+
+        void add(long fingerprint) {
+            int h1 = (int) fingerprint, h2 = (int) (fingerprint >>> 32) | 1;
+            for (int i = 0; i < hashes; i++) {
+                int bit = (h1 + i * h2) & mask;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+            count++;
+        }
+
+        boolean contains(long fingerprint) {
+            int h1 = (int) fingerprint, h2 = (int) (fingerprint >>> 32) | 1;
+            for (int i = 0; i < hashes; i++) {
+                int bit = (h1 + i * h2) & mask;
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+    }
+}
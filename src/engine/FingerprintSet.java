@@ -0,0 +1,122 @@
+package engine;
+
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+/**
+ * <p>
+ * Set of 64-bit message fingerprints, used to recognize messages that were already stored.
+ * </p>
+ * <p>
+ * Fingerprints are kept in a primitive array with open addressing and linear probing, so a message costs 8 bytes
+ * divided by the load factor and no objects are allocated per message. Fingerprint 0 marks an empty slot, which is
+ * why fingerprint never returns it. Not thread safe, the owning ConversationLog guards it with its lock.
+ * </p>
+ */
+class FingerprintSet {
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+    private static final double MAX_LOAD = 0.75;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long[] slots;
+    private int size;
+
+    /**
+     * @param expected - number of fingerprints the set should hold without growing
+     */
+    FingerprintSet(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expected) capacity <<= 1;
+        slots = new long[capacity];
+    }
+
+    /**
+     * <p>
+     * Returns fingerprint of the message: hash of the number of the person, direction, date and text. Messages equal
+     * in all of them are considered the same message.
+     * </p>
+     *
+     * @param person  - conversation participant
+     * @param message - message exchanged with the person
+     * @return fingerprint, never 0
+     */
+    static long fingerprint(Person person, Message message) {
+        long hash = hash(FNV_OFFSET, person.getNumber());
+        hash = (hash ^ (message.isSentByOwner() ? 1 : 2)) * FNV_PRIME;
+        long time = MessageDates.parse(message.getDate());
+        // Dates that could not be parsed are compared as they were written
+        hash = time == MessageDates.UNKNOWN ? hash(hash, message.getDate()) : (hash ^ time) * FNV_PRIME;
+        hash = hash(hash, message.getText());
+        hash = mix(hash);
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    /**
+     * @param fingerprint - fingerprint of a message
+     * @return true if the set did not hold the fingerprint
+     */
+    boolean add(long fingerprint) {
+        if (size + 1 > slots.length * MAX_LOAD) grow();
+        return insert(slots, fingerprint);
+    }
+
+    boolean contains(long fingerprint) {
+        int mask = slots.length - 1;
+        for (int i = (int) fingerprint & mask; slots[i] != EMPTY; i = (i + 1) & mask)
+            if (slots[i] == fingerprint) return true;
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private boolean insert(long[] table, long fingerprint) {
+        int mask = table.length - 1;
+        int i = (int) fingerprint & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == fingerprint) return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = fingerprint;
+        if (table == slots) size++;
+        return true;
+    }
+
+    private void grow() {
+        long[] old = slots;
+        long[] table = new long[old.length << 1];
+        for (long slot : old) if (slot != EMPTY) insert(table, slot);
+        slots = table;
+    }
+
+    private static long hash(long hash, String text) {
+        if (text == null) return (hash ^ 0xff) * FNV_PRIME;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        // Separates fields, so that moving characters from one field to another changes the fingerprint
+        return (hash ^ 0xfe) * FNV_PRIME;
+    }
+
+    /**
+     * Final mixing step of MurmurHash3, spreads FNV hash evenly over all 64 bits used by the set and the filter.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb33fa4ef2d3bL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "FingerprintSet[size=" + size + ", capacity=" + slots.length + "]";
+    }
+}
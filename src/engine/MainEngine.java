@@ -1,34 +1,95 @@
 package engine;
 
 import com.sun.org.apache.xml.internal.security.signature.ReferenceNotInitializedException;
-import com.vdurmont.emoji.EmojiParser;
-import gui.MainActivity;
 import informer_api.conversation.Conversation;
 import informer_api.conversation.Message;
 import informer_api.conversation.Person;
-import javafx.application.Platform;
-import net.MessageService;
+import net.OutboundQueue;
+import net.PhoneLink;
+import net.TransportMode;
 
+import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * <p>
  * The main engine of the whole program. Takes care of synchronizing every part of the system.
  * </p>
+ * <p>
+ * Objects received from the phone are only queued by methods invoked from connection threads. They are merged into
+ * the database, indexed and shown by the stages of EventPipeline, see there.
+ * </p>
+ * <p>
+ * Engine does not depend on the gui, results are passed to the EngineListener set with setListener: the main window
+ * or the headless daemon.
+ * </p>
+ * <p>
+ * Contact list is kept sorted by the database (see ContactIndex) and passed to the listener as single inserts and
+ * moves. The whole list is passed only when the listener is attached, the order changes or a new connection starts.
+ * </p>
  * Created by Piotr Waszkieiwcz on 31.01.17.
  */
 public class MainEngine {
+    /**
+     * System property selecting phone link implementation, see TransportMode.
+     */
+    public static final String TRANSPORT_PROPERTY = "informer.transport";
+    /**
+     * System property with directory of the persistent message store, defaults to .informer in user's home.
+     */
+    public static final String STORE_DIRECTORY_PROPERTY = "informer.store.dir";
+    /**
+     * System property with number of seconds the phone has to reconnect before the listener is told that it is
+     * disconnected, 30 by default.
+     */
+    public static final String RESUME_GRACE_PROPERTY = "informer.resume.grace";
+    /**
+     * System property with order of the contact list, recent (default) or number, see ContactIndex.Order.
+     */
+    public static final String CONTACT_ORDER_PROPERTY = "informer.contacts.order";
+    /**
+     * System property with number of the most recent messages of every conversation kept on the heap, 1024 by default.
+     * Older ones are kept compressed outside of the heap, see ConversationLog.
+     */
+    public static final String HOT_HISTORY_PROPERTY = "informer.history.hot";
+    /**
+     * System property with number of seconds the phone has to send its protocol header after connecting, 0 (wait as
+     * long as it takes, like servers that predate the binary protocol did) by default.
+     */
+    public static final String HANDSHAKE_TIMEOUT_PROPERTY = "informer.handshake.timeout";
+    /**
+     * Number of messages loaded at once when conversation is opened or scrolled.
+     */
+    public static final int PAGE_SIZE = 100;
+    private static final int MAX_SEARCH_RESULTS = 50;
+    private static final String OUTBOUND_JOURNAL = "outbound.log";
     private static MainEngine instance;
     private int port;
     private boolean isClosing = false;
-    private MainActivity mainGui;
-    private Database database;
-    private MessageService messageService;
-    private Person currentlyOpenedConversation;
+    private volatile EngineListener listener;
+    private final EventPipeline pipeline = new EventPipeline(EventPipeline.DEFAULT_CAPACITY);
+    private final Database database;
+    private PhoneLink messageService;
+    private final OutboundQueue outboundQueue;
+    private volatile Person currentlyOpenedConversation;
+    private final long resumeGraceSeconds = Long.getLong(RESUME_GRACE_PROPERTY, 30);
+    private final ScheduledExecutorService connectionTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MainEngine connection timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> pendingDisconnect;
+    private final AtomicLong searchGeneration = new AtomicLong();
 
     /**
      * <p>
@@ -53,11 +114,17 @@ public class MainEngine {
      */
     public void stopAllWork(boolean isRestart) {
         currentlyOpenedConversation = null;
+        database.setOpenedConversation(null);
         if (!isRestart) System.out.println("Preparing for shutdown");
         else System.out.println("Server restarting");
 
         isClosing = !isRestart;
         stopServices();
+        if (isClosing) {
+            pipeline.shutdown();
+            database.close();
+            outboundQueue.close();
+        }
         if (isRestart) {
             try {
                 startServer(port);
@@ -75,70 +142,225 @@ public class MainEngine {
     public void stopServices() {
         if (messageService != null) messageService.cancel();
         messageService = null;
-        Platform.runLater(() -> mainGui.clearAllViews());
+        synchronized (connectionTimer) {
+            if (pendingDisconnect != null) pendingDisconnect.cancel(false);
+            pendingDisconnect = null;
+        }
+        publish(EngineListener::clearAllViews);
     }
 
     /**
      * <p>
-     * Sets reference to main window. It will be used for loading important information.
+     * Sets listener that will be informed about everything that should be shown to the user, and passes the whole
+     * contact list to it.
      * </p>
      *
-     * @param gui main window reference
+     * @param listener         - main window or headless front end
+     * @param callbackExecutor - executor invoking the listener, Platform::runLater for the main window
      */
-    public void setMainGuiReference(MainActivity gui) {
-        mainGui = gui;
-        if (database != null)
-            Platform.runLater(() -> mainGui.loadPeople(new ArrayList<>(database.getConversations().keySet())));
+    public void setListener(EngineListener listener, Executor callbackExecutor) {
+        pipeline.setGuiExecutor(callbackExecutor);
+        this.listener = listener;
+        database.getContacts().reset();
     }
 
     /**
      * <p>
-     * Starts server and awaits connection.
+     * Changes order of the contact list, the listener receives the whole list again.
+     * </p>
+     *
+     * @param order - new order
+     */
+    public void setContactOrder(ContactIndex.Order order) {
+        database.getContacts().setOrder(order);
+    }
+
+    public ContactIndex.Order getContactOrder() {
+        return database.getContacts().getOrder();
+    }
+
+    /**
+     * @return store of contact photos, used by connections to resolve photos the phone refers to by hash
+     */
+    public PhotoStore getPhotoStore() {
+        return database.getPhotos();
+    }
+
+    /**
+     * <p>
+     * Starts server and awaits connection. Transport implementation is chosen by TRANSPORT_PROPERTY.
      * </p>
      *
      * @param port
      */
     public void startServer(int port) throws IOException {
-        System.out.println("Server listening on " + port);
+        TransportMode mode = TransportMode.fromName(System.getProperty(TRANSPORT_PROPERTY));
+        System.out.println("Server listening on " + port + " (" + mode + " transport)");
         this.port = port;
-        messageService = new MessageService(port);
+        messageService = mode.open(port, outboundQueue);
         messageService.start();
     }
 
     /**
      * <p>
-     * Informs main program window about connection status.
+     * Informs listener about connection status. Views and opened conversation are kept when the phone disconnects,
+     * and the listener is told about it only if the phone does not reconnect within RESUME_GRACE_PROPERTY seconds, so
+     * short network drops go unnoticed. Reconnected phone sends only what was missed, see PhoneLink implementations.
      * </p>
      *
      * @param isConnected - information is somebody connected to server
-     * @throws ReferenceNotInitializedException - if gui is not yet attached to engine
+     * @throws ReferenceNotInitializedException - if listener is not yet attached to engine
      */
     public void changeConnectionState(boolean isConnected) throws ReferenceNotInitializedException {
         if (isClosing) return;
-        checkGuiReference();
-        Platform.runLater(() -> {
-            if (isConnected) mainGui.closeWaitingDialog();
-            else mainGui.showWaitingDialog();
-        });
+        if (isConnected) Metrics.CONNECTIONS.increment();
+        else Metrics.DISCONNECTS.increment();
+        checkListener();
+        synchronized (connectionTimer) {
+            // Views were cleared by stopServices or never filled unless the phone comes back within the grace period
+            boolean resumed = pendingDisconnect != null && pendingDisconnect.cancel(false);
+            pendingDisconnect = null;
+            if (isConnected && !resumed) database.getContacts().reset();
+            if (isConnected || resumeGraceSeconds <= 0) {
+                publish(current -> current.connectionStateChanged(isConnected));
+            } else {
+                System.out.println("Phone disconnected, waiting " + resumeGraceSeconds + "s for it to reconnect");
+                pendingDisconnect = connectionTimer.schedule(
+                        () -> publish(current -> current.connectionStateChanged(false)), resumeGraceSeconds, TimeUnit.SECONDS);
+            }
+        }
     }
 
     /**
      * <p>
-     * Loads messages for conversation with selected person.
+     * Loads the most recent messages (PAGE_SIZE of them) for conversation with selected person. Older messages are
+     * loaded with loadMessages when user scrolls.
      * </p>
      *
      * @param conversationWith
      * @throws ReferenceNotInitializedException
      */
     public void loadConversation(Person conversationWith) throws ReferenceNotInitializedException {
-        checkGuiReference();
-        Conversation conversation = database.getConversationWithPerson(conversationWith);
+        checkListener();
+        ConversationSnapshot conversation = database.getRecentMessages(conversationWith, PAGE_SIZE);
         if (conversation != null) {
             currentlyOpenedConversation = conversationWith;
-            Platform.runLater(() -> mainGui.loadConversation(conversation));
+            database.setOpenedConversation(conversationWith);
+            publish(current -> current.loadConversation(conversation));
+        }
+    }
+
+    /**
+     * <p>
+     * Loads page of messages for conversation with selected person and passes it to the conversation view.
+     * </p>
+     *
+     * @param conversationWith - conversation participant
+     * @param from             - position of the first message to load
+     * @param count            - maximal number of messages to load
+     * @throws ReferenceNotInitializedException
+     */
+    public void loadMessages(Person conversationWith, int from, int count) throws ReferenceNotInitializedException {
+        checkListener();
+        ConversationSnapshot page = database.getMessages(conversationWith, from, count);
+        if (page != null) publish(current -> current.showPage(page));
+    }
+
+    /**
+     * <p>
+     * Loads page of the conversation with selected person around the provided message, so that the message can be
+     * shown to the user (for example after it was found by search).
+     * </p>
+     *
+     * @param conversationWith - conversation participant
+     * @param messageIndex     - position of the message in the conversation
+     * @throws ReferenceNotInitializedException
+     */
+    public void loadConversationAt(Person conversationWith, int messageIndex) throws ReferenceNotInitializedException {
+        checkListener();
+        ConversationSnapshot page = database.getMessages(conversationWith, Math.max(0, messageIndex - PAGE_SIZE / 2), PAGE_SIZE);
+        if (page != null) {
+            currentlyOpenedConversation = conversationWith;
+            database.setOpenedConversation(conversationWith);
+            publish(current -> current.showConversationAt(page, messageIndex));
         }
     }
 
+    /**
+     * <p>
+     * Returns messages exchanged with the provided person since the provided time.
+     * </p>
+     *
+     * @param conversationWith - conversation participant
+     * @param since            - epoch milliseconds
+     * @return messages in time order
+     */
+    public List<Message> getMessagesSince(Person conversationWith, long since) {
+        return database.getMessagesBetween(conversationWith, since, Long.MAX_VALUE);
+    }
+
+    /**
+     * <p>
+     * Returns the most recent messages exchanged with the provided person.
+     * </p>
+     *
+     * @param conversationWith - conversation participant
+     * @param count            - maximal number of messages
+     * @return page of the conversation, null if there is no conversation with the person
+     */
+    public ConversationSnapshot getRecentMessages(Person conversationWith, int count) {
+        return database.getRecentMessages(conversationWith, count);
+    }
+
+    /**
+     * @return everybody the database holds conversations with, in the order of the contact list
+     */
+    public List<Person> getPeople() {
+        return database.getContacts().getPeople();
+    }
+
+    /**
+     * @param number - phone number
+     * @return person with the provided number, null if there is no conversation with them
+     */
+    public Person findPerson(String number) {
+        for (Person person : database.getPeople())
+            if (person.getNumber().equals(number)) return person;
+        return null;
+    }
+
+    /**
+     * <p>
+     * Finds messages containing all words of the query. Words of the query may be incomplete, case and diacritics are
+     * ignored.
+     * </p>
+     *
+     * @param query - words to look for
+     * @return found messages, at most MAX_SEARCH_RESULTS of them
+     */
+    public List<SearchResult> search(String query) {
+        return database.search(query, MAX_SEARCH_RESULTS);
+    }
+
+    /**
+     * <p>
+     * Finds messages like search(String) on the search stage and passes results to the consumer through the gui
+     * executor. Query is skipped if another one was submitted before it started, so only the latest query typed by the
+     * user is run.
+     * </p>
+     *
+     * @param query           - words to look for
+     * @param resultsConsumer - receives found messages, at most MAX_SEARCH_RESULTS of them
+     */
+    public void search(String query, Consumer<List<SearchResult>> resultsConsumer) {
+        long generation = searchGeneration.incrementAndGet();
+        pipeline.search(() -> {
+            if (generation != searchGeneration.get()) return;
+            List<SearchResult> results = database.search(query, MAX_SEARCH_RESULTS);
+            if (generation == searchGeneration.get()) pipeline.publish(() -> resultsConsumer.accept(results));
+        });
+    }
+
     /**
      * <p>
      * Returns person that currently opened conversation applies to.
@@ -153,72 +375,216 @@ public class MainEngine {
     /**
      * <p>
      * Sends message with provided body content (text) to the person who is visible in current conversation window.
+     * Message is only queued, it reaches the phone as soon as the connection allows.
      * </p>
      *
      * @param text - body of the message
+     * @return false if message could not be queued, either because there is nothing to send it through or because too
+     * many messages are already waiting
      */
-    public void sendMessageToPhone(String text) {
-        if (currentlyOpenedConversation != null && messageService != null) {
-            System.out.println("Sending message " + text);
-            text = EmojiParser.parseToUnicode(text);
-            Message message = new Message(currentlyOpenedConversation.getNumber(), text);
-            messageService.sendMessage(message);
-            appendNewlySentMessageToConversation(text);
-        } else {
-            System.err.println("Can't send message due to no opened conversations (" +
-                    (currentlyOpenedConversation == null) + ") or no message service running (" +
-                    (messageService == null) + ")");
+    public boolean sendMessageToPhone(String text) {
+        Person opened = currentlyOpenedConversation;
+        if (opened == null) {
+            System.err.println("Can't send message due to no opened conversations");
+            return false;
         }
+        return sendMessage(opened, text);
     }
 
     /**
      * <p>
-     * Removes all data in an existing database and creates a new one.
+     * Sends message with provided body content (text) to the provided person. Message is only queued, it reaches the
+     * phone as soon as the connection allows.
+     * </p>
+     *
+     * @param recipient - person the message is sent to
+     * @param text      - body of the message
+     * @return false if message could not be queued, either because there is nothing to send it through or because too
+     * many messages are already waiting
+     */
+    public boolean sendMessage(Person recipient, String text) {
+        PhoneLink service = messageService;
+        if (service == null) {
+            System.err.println("Can't send message due to no message service running");
+            return false;
+        }
+        System.out.println("Sending message " + text);
+        text = EmojiShortcodes.getInstance().convertAll(text);
+        if (!service.sendMessage(new Message(recipient.getNumber(), text))) {
+            System.err.println("Can't send message, outbound queue is full: " + outboundQueue);
+            return false;
+        }
+        appendNewlySentMessage(recipient, text);
+        return true;
+    }
+
+    /**
+     * <p>
+     * Queues merge of full snapshot of conversations into the database. Already stored messages are kept, only
+     * missing ones are appended.
      * </p>
      *
      * @param data
      * @throws ReferenceNotInitializedException
      */
     public void synchronizeDatabase(Map<Person, Conversation> data) throws ReferenceNotInitializedException {
-        database = new Database(data);
-        checkGuiReference();
-        Platform.runLater(() -> mainGui.loadPeople(new ArrayList<>(data.keySet())));
+        checkListener();
+        pipeline.store(() -> database.mergeSnapshot(data));
     }
 
     /**
      * <p>
-     * Adds new messages from conversation and updates conversation displayed if needed.
+     * Returns watermarks of all stored conversations which are sent to the phone so that it sends only messages
+     * missing on the PC.
+     * </p>
+     *
+     * @return map of phone numbers and watermarks, empty if nothing is stored yet
+     */
+    public Map<String, Watermark> getSyncWatermarks() {
+        Metrics.syncStarted();
+        return database.getWatermarks();
+    }
+
+    /**
+     * <p>
+     * Queues merge of messages sent by the phone during incremental synchronization. Views are not refreshed until
+     * finishSynchronization is invoked.
+     * </p>
+     *
+     * @param delta - conversation containing only messages missing on the PC
+     */
+    public void synchronizeDelta(Conversation delta) {
+        pipeline.store(() -> database.mergeDelta(delta));
+    }
+
+    /**
+     * <p>
+     * Refreshes opened conversation after all messages missing on the PC were received. Refresh is queued after merges
+     * of these messages, contact list is already updated by them.
+     * </p>
+     *
+     * @throws ReferenceNotInitializedException
+     */
+    public void finishSynchronization() throws ReferenceNotInitializedException {
+        checkListener();
+        pipeline.store(() -> {
+            Metrics.syncFinished();
+            Person opened = currentlyOpenedConversation;
+            if (opened == null) return;
+            ConversationSnapshot conversation = database.getRecentMessages(opened, PAGE_SIZE);
+            if (conversation != null) publish(current -> current.loadConversation(conversation));
+        });
+    }
+
+    /**
+     * <p>
+     * Queues adding new messages from conversation and updating conversation displayed if needed.
+     * Only the new messages are passed to the conversation view, the rest of it is left untouched. Messages that were
+     * already stored (resent by the phone) are dropped and the listener is not told about them.
      * </p>
      *
      * @param newMessages
      * @throws ReferenceNotInitializedException
      */
     public void synchronizeNewMessages(Conversation newMessages) throws ReferenceNotInitializedException {
-        if (database != null) {
-            database.addNewMessages(newMessages);
-            // TODO: Check if loadConversation is really needed (could use some better performance techniques maybe?)
-            checkGuiReference();
-            Platform.runLater(() -> mainGui.showNewMessageInformation(newMessages));
-            if (currentlyOpenedConversation != null && currentlyOpenedConversation.equals(newMessages.getPerson()))
-                loadConversation(newMessages.getPerson());
-        }
+        pipeline.store(() -> {
+            ConversationSnapshot appended = database.addNewMessages(newMessages);
+            if (listener == null || appended.getMessages().isEmpty()) return;
+            Conversation received = newMessages;
+            if (appended.getMessages().size() < newMessages.getMessages().size()) {
+                received = new Conversation(newMessages.getPerson());
+                for (Message message : appended.getMessages()) received.addMessage(message);
+            }
+            Conversation shown = received;
+            publish(current -> current.showNewMessageInformation(shown));
+            appendToOpenedConversation(appended);
+        });
+        checkListener();
     }
 
-    private void appendNewlySentMessageToConversation(String text) {
-        String date = (new SimpleDateFormat("dd/MM/yyyy HH:mm:ss")).format(new Date());
-        Conversation conversation = new Conversation(currentlyOpenedConversation);
+    /**
+     * <p>
+     * Passes messages just added to the database to the conversation view, provided that it shows their conversation.
+     * </p>
+     *
+     * @param appended - messages just added and position of the first of them in the whole conversation
+     */
+    private void appendToOpenedConversation(ConversationSnapshot appended) {
+        Person opened = currentlyOpenedConversation;
+        if (listener == null || opened == null || !opened.equals(appended.getPerson())) return;
+        if (appended.getMessages().isEmpty()) return;
+        publish(current -> current.appendMessages(opened, appended.getFirstIndex(), appended.getMessages()));
+    }
+
+    private void appendNewlySentMessage(Person recipient, String text) {
+        String date = MessageDates.now();
+        Conversation conversation = new Conversation(recipient);
         conversation.addMessage(new Message(true, date, text));
-        database.addNewMessages(conversation);
-        try {
-            loadConversation(currentlyOpenedConversation);
-        } catch (ReferenceNotInitializedException e) {
-        }
+        pipeline.store(() -> appendToOpenedConversation(database.addSentMessages(conversation)));
+    }
+
+    /**
+     * Queues invocation of the listener, nothing happens if no listener is attached.
+     */
+    private void publish(Consumer<EngineListener> callback) {
+        pipeline.publish(() -> {
+            EngineListener current = listener;
+            if (current != null) callback.accept(current);
+        });
     }
 
-    private void checkGuiReference() throws ReferenceNotInitializedException {
-        if (mainGui == null) throw new ReferenceNotInitializedException("Main gui not set! Cannot perform action.");
+    private void checkListener() throws ReferenceNotInitializedException {
+        if (listener == null) throw new ReferenceNotInitializedException("Listener not set! Cannot perform action.");
     }
 
     private MainEngine() {
+        File storeDirectory = new File(System.getProperty(STORE_DIRECTORY_PROPERTY,
+                System.getProperty("user.home") + File.separator + ".informer"));
+        Database opened;
+        try {
+            opened = new Database(MessageStore.open(storeDirectory), pipeline.indexer());
+            System.out.println("Loaded " + opened.getPeople().size() + " conversations from " + storeDirectory);
+        } catch (IOException e) {
+            System.err.println("Could not open message store, history will not be saved. Error: " + e.getMessage());
+            opened = new Database(new HashMap<>(), pipeline.indexer());
+        }
+        database = opened;
+        OutboundQueue queue;
+        try {
+            queue = OutboundQueue.open(OutboundQueue.DEFAULT_CAPACITY, new File(storeDirectory, OUTBOUND_JOURNAL));
+            if (queue.getPendingCount() > 0)
+                System.out.println(queue.getPendingCount() + " messages from the last run wait for the phone");
+        } catch (IOException e) {
+            System.err.println("Could not open outbound journal, unsent messages will be lost on exit. Error: " + e.getMessage());
+            queue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY);
+        }
+        outboundQueue = queue;
+        database.getContacts().setOrder(ContactIndex.Order.fromName(System.getProperty(CONTACT_ORDER_PROPERTY)));
+        database.getContacts().setObserver(new ContactPublisher());
+        Metrics.start(outboundQueue, database::getColdBytes);
+        Thread indexBuilder = new Thread(database::buildSearchIndex, "SearchIndex builder");
+        indexBuilder.setDaemon(true);
+        indexBuilder.start();
+    }
+
+    /**
+     * Passes changes of the contact list to the listener. Invoked under the lock of the index, so they are queued in
+     * the order they were made.
+     */
+    private class ContactPublisher implements ContactIndex.Observer {
+        @Override
+        public void reset(List<Person> people) {
+            publish(current -> current.loadPeople(people));
+        }
+
+        @Override
+        public void inserted(Person person, int index) {
+            publish(current -> current.contactInserted(person, index));
+        }
+
+        @Override
+        public void moved(Person person, int from, int to) {
+            publish(current -> current.contactMoved(person, from, to));
+        }
     }
 }
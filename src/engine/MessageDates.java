@@ -0,0 +1,88 @@
+package engine;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * <p>
+ * Conversion between message dates, which travel as "dd/MM/yyyy HH:mm:ss" strings in local time, and epoch
+ * milliseconds used by the engine for ordering.
+ * </p>
+ * <p>
+ * Formatter is immutable and thread-safe, so a single instance is shared. Dates in the expected format are parsed by
+ * hand, which is several times faster than going through the formatter and matters when long conversations are
+ * loaded.
+ * </p>
+ */
+final class MessageDates {
+    static final String PATTERN = "dd/MM/yyyy HH:mm:ss";
+    /**
+     * Value used for missing or malformed dates. It is smaller than any real date, so such messages are ordered first.
+     */
+    static final long UNKNOWN = Long.MIN_VALUE;
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(PATTERN);
+
+    private MessageDates() {
+    }
+
+    /**
+     * <p>
+     * Parses message date.
+     * </p>
+     *
+     * @param date - date in PATTERN format, may be null
+     * @return epoch milliseconds or UNKNOWN if date is missing or malformed
+     */
+    static long parse(String date) {
+        if (date == null) return UNKNOWN;
+        try {
+            LocalDateTime time = date.length() == PATTERN.length() ? parseFixed(date) : null;
+            if (time == null) time = LocalDateTime.parse(date, FORMATTER);
+            ZoneId zone = ZoneId.systemDefault();
+            return time.toEpochSecond(zone.getRules().getOffset(time)) * 1000;
+        } catch (DateTimeException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * <p>
+     * Formats epoch milliseconds as message date.
+     * </p>
+     *
+     * @param epochMillis - time to format
+     * @return date in PATTERN format
+     */
+    static String format(long epochMillis) {
+        return FORMATTER.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault()));
+    }
+
+    /**
+     * @return current time in PATTERN format
+     */
+    static String now() {
+        return format(System.currentTimeMillis());
+    }
+
+    private static LocalDateTime parseFixed(String date) {
+        if (date.charAt(2) != '/' || date.charAt(5) != '/' || date.charAt(10) != ' ' || date.charAt(13) != ':'
+                || date.charAt(16) != ':') return null;
+        int day = digits(date, 0, 2), month = digits(date, 3, 5), year = digits(date, 6, 10);
+        int hour = digits(date, 11, 13), minute = digits(date, 14, 16), second = digits(date, 17, 19);
+        if ((day | month | year | hour | minute | second) < 0) return null;
+        return LocalDateTime.of(year, month, day, hour, minute, second);
+    }
+
+    private static int digits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,706 @@
+package engine;
+
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * <p>
+ * Disk-backed, append-only storage of all conversations, so that history can be shown right after the program starts,
+ * before the phone connects.
+ * </p>
+ * <p>
+ * Messages are appended to segment files as records pointing to the previous record of the same person. Memory-mapped
+ * index keeps offset of the last record and number of messages of every person, so a single conversation can be
+ * loaded lazily by walking its chain of records backwards. Chains are walked through read-only mappings of segments,
+ * made once for every sealed segment and again for the active one only after it grew. People are kept in a separate
+ * append-only file read at startup. Every record is prefixed with its length and CRC32 checksum, which allows
+ * recovering from a crash in the middle of a write.
+ * </p>
+ * <p>
+ * Photos are kept in their own append-only file, every distinct photo written once, and people records refer to them
+ * by hash (see PhotoStore). Records written before that hold photos inline and are still read. New photo is forced to
+ * disk before the people record referring to it is written, so no record on disk refers to a missing photo. New
+ * photos are rare, so forcing each of them costs little.
+ * </p>
+ * <p>
+ * Search results are read from conversations that are not loaded, so offsets of records of the last CACHED_OFFSETS
+ * conversations searched are kept in memory and results are read directly instead of walking the chain.
+ * </p>
+ * <p>
+ * Appends never wait for the disk. Background thread forces written data to disk every COMMIT_INTERVAL milliseconds,
+ * committing all appends made in the meantime at once.
+ * </p>
+ */
+class MessageStore implements Closeable {
+    private static final String PEOPLE_FILE = "people.log";
+    private static final String PHOTOS_FILE = "photos.log";
+    private static final String INDEX_FILE = "index.map";
+    private static final String SEGMENT_FORMAT = "segment-%05d.log";
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int INDEX_MAGIC = 0x494E4432;
+    private static final int INDEX_HEADER_SIZE = 16;
+    // Slots are padded to 16 bytes, so that none of them spans two pages of the mapping
+    private static final int INDEX_SLOT_SIZE = 16;
+    private static final long COMMIT_INTERVAL = 20;
+    private static final int NO_PHOTO = -1;
+    private static final int PHOTO_REFERENCE = -2;
+    private static final int CACHED_OFFSETS = 64;
+
+    private final File directory;
+    private final FileChannel peopleChannel;
+    private final FileChannel photosChannel;
+    private final FileChannel indexChannel;
+    private final List<FileChannel> segments = new ArrayList<>();
+    private final List<MappedByteBuffer> views = new ArrayList<>();
+    private final List<Person> people = new ArrayList<>();
+    private final Map<String, Integer> personIds = new HashMap<>();
+    private final PhotoStore photos = new PhotoStore();
+    private final Set<Long> storedPhotos = new HashSet<>();
+    private final Map<Integer, RecordOffsets> offsets = new LinkedHashMap<Integer, RecordOffsets>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, RecordOffsets> eldest) {
+            return size() > CACHED_OFFSETS;
+        }
+    };
+    private final ScheduledExecutorService committer;
+    private final CRC32 checksum = new CRC32();
+    private final RecordBuffer recordBytes = new RecordBuffer();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final RecordBuffer bodyBytes = new RecordBuffer();
+    private final DataOutputStream bodyOut = new DataOutputStream(bodyBytes);
+    private MappedByteBuffer index;
+    private long logEnd;
+    private boolean dirty;
+
+    /**
+     * <p>
+     * Opens store located in the provided directory, creating it if needed.
+     * </p>
+     *
+     * @param directory - directory holding store files
+     * @return opened store
+     * @throws IOException - if store could not be opened
+     */
+    static MessageStore open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create store directory " + directory);
+        return new MessageStore(directory);
+    }
+
+    private MessageStore(File directory) throws IOException {
+        this.directory = directory;
+        photosChannel = FileChannel.open(new File(directory, PHOTOS_FILE).toPath(), CREATE, READ, WRITE);
+        loadPhotos();
+        peopleChannel = FileChannel.open(new File(directory, PEOPLE_FILE).toPath(), CREATE, READ, WRITE);
+        loadPeople();
+        openSegments();
+        indexChannel = FileChannel.open(new File(directory, INDEX_FILE).toPath(), CREATE, READ, WRITE);
+        mapIndex(Math.max(64, people.size() * 2));
+        recoverIndex();
+        committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MessageStore commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(this::commit, COMMIT_INTERVAL, COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>
+     * Returns every person that has a conversation stored.
+     * </p>
+     *
+     * @return list of people
+     */
+    synchronized List<Person> getPeople() {
+        return new ArrayList<>(people);
+    }
+
+    /**
+     * @return store of photos, holding every photo read from disk
+     */
+    PhotoStore getPhotos() {
+        return photos;
+    }
+
+    synchronized int getMessageCount(Person person) throws IOException {
+        Integer id = personIds.get(person.getNumber());
+        return id == null ? 0 : index.getInt(slot(id) + 8);
+    }
+
+    /**
+     * <p>
+     * Reads the most recent message stored for the provided person.
+     * </p>
+     *
+     * @param person - conversation participant
+     * @return last message or null if there is none
+     * @throws IOException - if message could not be read
+     */
+    synchronized Message getLastMessage(Person person) throws IOException {
+        Integer id = personIds.get(person.getNumber());
+        if (id == null || index.getInt(slot(id) + 8) == 0) return null;
+        ByteBuffer body = readRecord(index.getLong(slot(id)));
+        if (body == null) return null;
+        body.getInt();
+        body.getLong();
+        return readMessage(body);
+    }
+
+    /**
+     * <p>
+     * Loads the whole conversation with the provided person.
+     * </p>
+     *
+     * @param person - conversation participant
+     * @return conversation with all stored messages, empty if nothing is stored
+     * @throws IOException - if messages could not be read
+     */
+    synchronized Conversation loadConversation(Person person) throws IOException {
+        Conversation conversation = new Conversation(person);
+        for (Message m : loadMessages(person, 0, getMessageCount(person))) conversation.addMessage(m);
+        return conversation;
+    }
+
+    /**
+     * <p>
+     * Loads part of the conversation with the provided person. Chain of records is walked backwards from the most
+     * recent message, and messages newer than the requested range are skipped without being decoded, so reading
+     * recent messages costs the same regardless of conversation length.
+     * </p>
+     *
+     * @param person - conversation participant
+     * @param from   - position of the first message to load
+     * @param count  - maximal number of messages to load
+     * @return messages in order, empty if nothing is stored in that range
+     * @throws IOException - if messages could not be read
+     */
+    synchronized List<Message> loadMessages(Person person, int from, int count) throws IOException {
+        int total = getMessageCount(person);
+        int to = (int) Math.min(total, (long) from + count);
+        if (from < 0 || from >= to) return new ArrayList<>();
+
+        long offset = index.getLong(slot(personIds.get(person.getNumber())));
+        Message[] messages = new Message[to - from];
+        for (int i = total - 1; i >= from && offset >= 0; i--) {
+            ByteBuffer body = view((int) (offset >>> 32)).duplicate();
+            body.position((int) offset + RECORD_HEADER_SIZE);
+            body.getInt();
+            offset = body.getLong();
+            if (i < to) messages[i - from] = readMessage(body);
+        }
+        List<Message> loaded = new ArrayList<>(messages.length);
+        for (Message m : messages)
+            if (m != null) loaded.add(m);
+        return loaded;
+    }
+
+    /**
+     * <p>
+     * Loads chosen messages of the conversation with the provided person. Chain of records is walked only the first
+     * time, later every message is read directly, see RecordOffsets.
+     * </p>
+     *
+     * @param person    - conversation participant
+     * @param positions - positions of messages to load
+     * @return messages at the provided positions, null for positions out of range
+     * @throws IOException - if messages could not be read
+     */
+    synchronized Message[] loadMessagesAt(Person person, int[] positions) throws IOException {
+        Message[] messages = new Message[positions.length];
+        Integer id = personIds.get(person.getNumber());
+        if (id == null) return messages;
+        RecordOffsets records = offsetsOf(id);
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] < 0 || positions[i] >= records.size || records.offsets[positions[i]] < 0) continue;
+            ByteBuffer body = readRecord(records.offsets[positions[i]]);
+            if (body == null) continue;
+            body.getInt();
+            body.getLong();
+            messages[i] = readMessage(body);
+        }
+        return messages;
+    }
+
+    private RecordOffsets offsetsOf(int id) throws IOException {
+        RecordOffsets records = offsets.get(id);
+        if (records != null) return records;
+        int slot = slot(id);
+        records = new RecordOffsets(index.getInt(slot + 8));
+        long offset = records.size == 0 ? -1 : index.getLong(slot);
+        for (int i = records.size - 1; i >= 0 && offset >= 0; i--) {
+            records.offsets[i] = offset;
+            offset = view((int) (offset >>> 32)).getLong((int) offset + RECORD_HEADER_SIZE + 4);
+        }
+        offsets.put(id, records);
+        return records;
+    }
+
+    /**
+     * <p>
+     * Stores person data if it is not known yet or if nickname or photo changed.
+     * </p>
+     *
+     * @param person - person to store
+     * @throws IOException - if person could not be written
+     */
+    synchronized void savePerson(Person person) throws IOException {
+        personId(person);
+    }
+
+    /**
+     * <p>
+     * Appends messages to the conversation with the provided person. All records are written with a single write call.
+     * </p>
+     *
+     * @param person   - conversation participant
+     * @param messages - new messages, in order
+     * @throws IOException - if messages could not be written
+     */
+    synchronized void append(Person person, List<Message> messages) throws IOException {
+        if (messages.isEmpty()) return;
+        int id = personId(person);
+        int slot = slot(id);
+        int count = index.getInt(slot + 8);
+        long previous = count == 0 ? -1 : index.getLong(slot);
+
+        FileChannel active = segments.get(segments.size() - 1);
+        long position = active.size();
+        if (position >= SEGMENT_SIZE) {
+            active = startNewSegment();
+            position = 0;
+        }
+        long segmentBase = (long) (segments.size() - 1) << 32;
+        RecordOffsets records = offsets.get(id);
+        long[] written = new long[records == null ? 0 : messages.size()];
+        recordBytes.reset();
+        for (int i = 0; i < messages.size(); i++) {
+            long offset = segmentBase | (position + recordBytes.size());
+            writeMessageRecord(id, previous, messages.get(i));
+            previous = offset;
+            if (records != null) written[i] = offset;
+        }
+        writeFully(active, ByteBuffer.wrap(recordBytes.array(), 0, recordBytes.size()), position);
+        for (long offset : written) records.add(offset);
+
+        index.putLong(slot, previous);
+        index.putInt(slot + 8, count + messages.size());
+        logEnd = segmentBase | (position + recordBytes.size());
+        dirty = true;
+    }
+
+    /**
+     * <p>
+     * Forces all data written so far to disk.
+     * </p>
+     */
+    void commit() {
+        FileChannel active;
+        MappedByteBuffer slots;
+        long end;
+        synchronized (this) {
+            if (!dirty) return;
+            dirty = false;
+            active = segments.get(segments.size() - 1);
+            slots = index;
+            end = logEnd;
+        }
+        try {
+            active.force(false);
+            peopleChannel.force(false);
+            // Pages of a mapping reach the disk in any order, so the header is updated only after slots are forced,
+            // and never points past records whose slots are not on disk, see recoverIndex
+            slots.force();
+            synchronized (this) {
+                index.putLong(8, end);
+                slots = index;
+            }
+            slots.force();
+        } catch (IOException e) {
+            System.err.println("MessageStore commit: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        committer.shutdown();
+        try {
+            committer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+        commit();
+        try {
+            peopleChannel.close();
+            photosChannel.close();
+            indexChannel.close();
+            for (FileChannel segment : segments) segment.close();
+        } catch (IOException e) {
+        }
+        synchronized (this) {
+            views.clear();
+        }
+    }
+
+    private int personId(Person person) throws IOException {
+        Integer id = personIds.get(person.getNumber());
+        if (id != null) {
+            Person stored = people.get(id);
+            if (stored == person || (equalText(stored.getNickname(), person.getNickname()) &&
+                    Arrays.equals(stored.getPhoto(), person.getPhoto()))) return id;
+            people.set(id, person);
+        } else {
+            id = people.size();
+            people.add(person);
+            personIds.put(person.getNumber(), id);
+        }
+
+        byte[] photo = person.getPhoto();
+        long photoHash = photo == null ? 0 : savePhoto(photo);
+        recordBytes.reset();
+        bodyOut.writeInt(id);
+        writeString(person.getNickname());
+        writeString(person.getNumber());
+        if (photo == null) {
+            bodyOut.writeInt(NO_PHOTO);
+        } else {
+            bodyOut.writeInt(PHOTO_REFERENCE);
+            bodyOut.writeLong(photoHash);
+        }
+        finishRecord();
+        writeFully(peopleChannel, ByteBuffer.wrap(recordBytes.array(), 0, recordBytes.size()), peopleChannel.size());
+        dirty = true;
+        return id;
+    }
+
+    /**
+     * Appends the photo to the photos file unless it is already there. Written photo is forced to disk right away,
+     * because pages of different files reach the disk in any order and the people record referring to it comes next.
+     *
+     * @return hash of the photo
+     */
+    private long savePhoto(byte[] photo) throws IOException {
+        long hash = photos.hashOfHeld(photo);
+        if (storedPhotos.contains(hash)) return hash;
+        recordBytes.reset();
+        bodyOut.write(photo);
+        finishRecord();
+        writeFully(photosChannel, ByteBuffer.wrap(recordBytes.array(), 0, recordBytes.size()), photosChannel.size());
+        photosChannel.force(false);
+        storedPhotos.add(hash);
+        return hash;
+    }
+
+    private void writeMessageRecord(int personId, long previous, Message message) throws IOException {
+        bodyOut.writeInt(personId);
+        bodyOut.writeLong(previous);
+        bodyOut.writeBoolean(message.isSentByOwner());
+        writeString(message.getDate());
+        writeString(message.getText());
+        finishRecord();
+    }
+
+    /**
+     * Moves record body to the output buffer, prefixed with its length and checksum.
+     */
+    private void finishRecord() throws IOException {
+        checksum.reset();
+        checksum.update(bodyBytes.array(), 0, bodyBytes.size());
+        record.writeInt(bodyBytes.size());
+        record.writeInt((int) checksum.getValue());
+        record.write(bodyBytes.array(), 0, bodyBytes.size());
+        bodyBytes.reset();
+    }
+
+    private void writeString(String text) throws IOException {
+        if (text == null) {
+            bodyOut.writeInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        bodyOut.writeInt(bytes.length);
+        bodyOut.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Message readMessage(ByteBuffer body) {
+        boolean sentByOwner = body.get() != 0;
+        String date = readString(body);
+        return new Message(sentByOwner, date, readString(body));
+    }
+
+    private static boolean equalText(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private ByteBuffer readRecord(long offset) throws IOException {
+        return readRecord(segments.get((int) (offset >>> 32)), offset & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reads body of a record, returning null if it is incomplete or corrupted.
+     */
+    private ByteBuffer readRecord(FileChannel channel, long position) throws IOException {
+        if (position + RECORD_HEADER_SIZE > channel.size()) return null;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(channel, header, position);
+        int length = header.getInt(0);
+        if (length < 0 || length > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + length > channel.size())
+            return null;
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(channel, body, position + RECORD_HEADER_SIZE);
+        checksum.reset();
+        checksum.update(body.array(), 0, length);
+        if ((int) checksum.getValue() != header.getInt(4)) return null;
+        body.rewind();
+        return body;
+    }
+
+    private void loadPeople() throws IOException {
+        long position = 0;
+        ByteBuffer body;
+        while ((body = readRecord(peopleChannel, position)) != null) {
+            position += RECORD_HEADER_SIZE + body.capacity();
+            int id = body.getInt();
+            String nickname = readString(body);
+            String number = readString(body);
+            int photoLength = body.getInt();
+            byte[] photo = null;
+            if (photoLength == PHOTO_REFERENCE) {
+                long hash = body.getLong();
+                photo = photos.get(hash);
+                if (photo == null) System.err.println("MessageStore: missing photo of " + number);
+            } else if (photoLength >= 0) {
+                photo = new byte[photoLength];
+                body.get(photo);
+                photo = photos.intern(photo);
+            }
+            Person person = new Person(nickname, number, photo);
+            if (id == people.size()) people.add(person);
+            else if (id < people.size()) people.set(id, person);
+            else break;
+            personIds.put(number, id);
+        }
+        // Drop the tail left by an interrupted write
+        peopleChannel.truncate(position);
+    }
+
+    private void loadPhotos() throws IOException {
+        long position = 0;
+        ByteBuffer body;
+        while ((body = readRecord(photosChannel, position)) != null) {
+            position += RECORD_HEADER_SIZE + body.capacity();
+            storedPhotos.add(photos.hashOfHeld(photos.intern(body.array())));
+        }
+        // Drop the tail left by an interrupted write
+        photosChannel.truncate(position);
+    }
+
+    private void openSegments() throws IOException {
+        for (int i = 0; ; i++) {
+            File file = new File(directory, String.format(SEGMENT_FORMAT, i));
+            if (!file.exists() && i > 0) break;
+            segments.add(FileChannel.open(file.toPath(), CREATE, READ, WRITE));
+        }
+    }
+
+    /**
+     * Returns read-only mapping of the segment. Sealed segments are mapped once, the active one again only after it
+     * grew past its mapping.
+     */
+    private MappedByteBuffer view(int segment) throws IOException {
+        while (views.size() <= segment) views.add(null);
+        MappedByteBuffer view = views.get(segment);
+        boolean active = segment == segments.size() - 1;
+        if (view == null || (active && view.capacity() < (logEnd & 0xFFFFFFFFL))) {
+            FileChannel channel = segments.get(segment);
+            view = channel.map(FileChannel.MapMode.READ_ONLY, 0, active ? logEnd & 0xFFFFFFFFL : channel.size());
+            views.set(segment, view);
+        }
+        return view;
+    }
+
+    private FileChannel startNewSegment() throws IOException {
+        FileChannel previous = segments.get(segments.size() - 1);
+        previous.force(false);
+        // Mapping of the segment that was active may be short of its end, it is mapped again whole once it is needed
+        if (views.size() >= segments.size()) views.set(segments.size() - 1, null);
+        File file = new File(directory, String.format(SEGMENT_FORMAT, segments.size()));
+        FileChannel segment = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void mapIndex(int slots) throws IOException {
+        long size = INDEX_HEADER_SIZE + (long) slots * INDEX_SLOT_SIZE;
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, indexChannel.size()));
+    }
+
+    private int slot(int personId) throws IOException {
+        int position = INDEX_HEADER_SIZE + personId * INDEX_SLOT_SIZE;
+        if (position + INDEX_SLOT_SIZE > index.capacity()) mapIndex((personId + 1) * 2);
+        return position;
+    }
+
+    /**
+     * <p>
+     * Brings index up to date with segment files. Records appended after the last index update are applied again and
+     * if index is missing or points past the end of data it is rebuilt from scratch.
+     * </p>
+     * <p>
+     * Commit forces slots before the header, but pages of the mapping may still reach the disk in any order, so slots
+     * can be ahead of the header and already hold some of the replayed records. Replaying is therefore idempotent:
+     * the last replayed record of a conversation becomes the head of its chain, and messages of the conversation are
+     * counted again by walking the chain. Slot pointing past the end of stored records belongs to an append that did
+     * not reach the disk, its previous state is lost, so the index is rebuilt.
+     * </p>
+     */
+    private void recoverIndex() throws IOException {
+        int lastSegment = segments.size() - 1;
+        long storedEnd = ((long) lastSegment << 32) | segments.get(lastSegment).size();
+        long indexedEnd = index.getLong(8);
+        if (index.getInt(0) != INDEX_MAGIC || indexedEnd > storedEnd || !replay(indexedEnd, false)) {
+            System.out.println("MessageStore: rebuilding index");
+            for (int i = 0; i < index.capacity(); i++) index.put(i, (byte) 0);
+            index.putInt(0, INDEX_MAGIC);
+            replay(0, true);
+        }
+        index.force();
+    }
+
+    /**
+     * Applies records stored from the provided offset to the index.
+     *
+     * @return false if a slot points past the end of stored records or to a broken chain
+     */
+    private boolean replay(long from, boolean rebuilding) throws IOException {
+        int lastSegment = segments.size() - 1;
+        Set<Integer> replayed = new HashSet<>();
+        for (int segment = (int) (from >>> 32); segment <= lastSegment; segment++) {
+            FileChannel channel = segments.get(segment);
+            long position = segment == (int) (from >>> 32) ? from & 0xFFFFFFFFL : 0;
+            ByteBuffer body;
+            while ((body = readRecord(channel, position)) != null) {
+                int personId = body.getInt();
+                if (personId < people.size()) {
+                    int slot = slot(personId);
+                    index.putLong(slot, ((long) segment << 32) | position);
+                    // Slots cleared for rebuilding are counted exactly, others once replay is done
+                    if (rebuilding) index.putInt(slot + 8, index.getInt(slot + 8) + 1);
+                    else replayed.add(personId);
+                }
+                position += RECORD_HEADER_SIZE + body.capacity();
+            }
+            if (segment == lastSegment) {
+                channel.truncate(position);
+                logEnd = ((long) segment << 32) | position;
+                index.putLong(8, logEnd);
+            }
+        }
+        if (rebuilding) return true;
+        for (int personId = 0; personId < people.size(); personId++) {
+            int slot = slot(personId);
+            if (replayed.contains(personId)) {
+                int count = countChain(index.getLong(slot));
+                if (count < 0) return false;
+                index.putInt(slot + 8, count);
+            } else if (index.getInt(slot + 8) > 0 && index.getLong(slot) >= logEnd) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts records of a conversation by following links to previous records from the provided one.
+     *
+     * @return number of records, -1 if the chain is broken
+     */
+    private int countChain(long offset) throws IOException {
+        int count = 0;
+        while (offset >= 0) {
+            ByteBuffer body = readRecord(offset);
+            if (body == null) return -1;
+            count++;
+            offset = body.getLong(4);
+        }
+        return count;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of store file");
+            position += read;
+        }
+    }
+
+    /**
+     * Offsets of all records of a conversation, in order, -1 for records that could not be found.
+     */
+    private static class RecordOffsets {
+        private long[] offsets;
+        private int size;
+
+        RecordOffsets(int size) {
+            this.size = size;
+            offsets = new long[Math.max(16, size)];
+            Arrays.fill(offsets, -1);
+        }
+
+        void add(long offset) {
+            if (size == offsets.length) offsets = Arrays.copyOf(offsets, size * 2);
+            offsets[size++] = offset;
+        }
+    }
+
+    /**
+     * Byte array stream giving access to its internal buffer, so records can be written without copying.
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package engine;
+
+import net.OutboundQueue;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>
+ * Runtime metrics of the phone link, the engine and the gui.
+ * </p>
+ * <p>
+ * Counters and histograms are striped (LongAdder), so recording does not allocate and threads recording at the same
+ * time do not contend. Together they show where the time goes when messages are slow: sync duration and
+ * acknowledgment latency depend on the phone, bytes and decode latency on the connection, store latency on the
+ * engine and gui latency on the JavaFX thread.
+ * </p>
+ * <p>
+ * Metrics are published as JMX MBean OBJECT_NAME (see MetricsMBean), and are printed periodically if
+ * LOG_INTERVAL_PROPERTY is set.
+ * </p>
+ */
+public final class Metrics implements MetricsMBean {
+    public static final String OBJECT_NAME = "informer:type=Metrics";
+    /**
+     * System property with interval of the metrics log line in seconds, nothing is logged if it is not set.
+     */
+    public static final String LOG_INTERVAL_PROPERTY = "informer.metrics.interval";
+
+    public static final LongAdder MESSAGES_IN = new LongAdder();
+    public static final LongAdder MESSAGES_OUT = new LongAdder();
+    public static final LongAdder FRAMES_IN = new LongAdder();
+    public static final LongAdder BYTES_IN = new LongAdder();
+    public static final LongAdder BYTES_OUT = new LongAdder();
+    public static final LongAdder CONNECTIONS = new LongAdder();
+    public static final LongAdder DISCONNECTS = new LongAdder();
+    /**
+     * Messages dropped by the database because they were already stored.
+     */
+    public static final LongAdder DUPLICATES = new LongAdder();
+    /**
+     * Time of decoding a single frame, without waiting for its bytes.
+     */
+    public static final Histogram DECODE_LATENCY = new Histogram();
+    /**
+     * Time from queueing a database task to its completion.
+     */
+    public static final Histogram STORE_LATENCY = new Histogram();
+    /**
+     * Time from submitting a gui task to its execution on the JavaFX thread.
+     */
+    public static final Histogram GUI_LATENCY = new Histogram();
+    /**
+     * Time from sending watermarks to the phone to merging all messages it was missing.
+     */
+    public static final Histogram SYNC_DURATION = new Histogram();
+
+    private static final Metrics INSTANCE = new Metrics();
+    private static volatile OutboundQueue outboundQueue;
+    private static volatile LongSupplier coldHistoryBytes = () -> 0;
+    private static volatile long syncStart;
+    private static ScheduledExecutorService logger;
+
+    private Metrics() {
+    }
+
+    /**
+     * @return metrics of this process, toString gives a single line summary
+     */
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * <p>
+     * Registers MBean and starts periodic log if it was requested. Failures are only reported, metrics are still
+     * recorded.
+     * </p>
+     *
+     * @param queue     - queue of outbound messages, its depth is reported
+     * @param coldBytes - size of conversation history kept outside of the heap
+     */
+    static synchronized void start(OutboundQueue queue, LongSupplier coldBytes) {
+        outboundQueue = queue;
+        coldHistoryBytes = coldBytes;
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+        } catch (JMException e) {
+            System.err.println("Metrics: " + e.getMessage());
+        }
+
+        long interval = Long.getLong(LOG_INTERVAL_PROPERTY, 0);
+        if (interval > 0 && logger == null) {
+            logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Metrics log");
+                thread.setDaemon(true);
+                return thread;
+            });
+            logger.scheduleAtFixedRate(() -> System.out.println(INSTANCE), interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    static void syncStarted() {
+        syncStart = System.nanoTime();
+    }
+
+    static void syncFinished() {
+        long start = syncStart;
+        if (start != 0) SYNC_DURATION.record(System.nanoTime() - start);
+        syncStart = 0;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return MESSAGES_IN.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return MESSAGES_OUT.sum();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return FRAMES_IN.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return BYTES_IN.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return BYTES_OUT.sum();
+    }
+
+    @Override
+    public long getConnections() {
+        return CONNECTIONS.sum();
+    }
+
+    @Override
+    public long getDisconnects() {
+        return DISCONNECTS.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return DUPLICATES.sum();
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        OutboundQueue queue = outboundQueue;
+        return queue == null ? 0 : queue.getPendingCount();
+    }
+
+    @Override
+    public long getColdHistoryBytes() {
+        return coldHistoryBytes.getAsLong();
+    }
+
+    @Override
+    public double getAcknowledgmentLatencyMillis() {
+        OutboundQueue queue = outboundQueue;
+        return queue == null ? 0 : queue.getAverageLatency();
+    }
+
+    @Override
+    public double getDecodeLatencyP50Micros() {
+        return DECODE_LATENCY.percentile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getDecodeLatencyP99Micros() {
+        return DECODE_LATENCY.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getStoreLatencyP50Millis() {
+        return STORE_LATENCY.percentile(0.5) / 1e6;
+    }
+
+    @Override
+    public double getStoreLatencyP99Millis() {
+        return STORE_LATENCY.percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getGuiLatencyP50Millis() {
+        return GUI_LATENCY.percentile(0.5) / 1e6;
+    }
+
+    @Override
+    public double getGuiLatencyP99Millis() {
+        return GUI_LATENCY.percentile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getGuiLatencyMaxMillis() {
+        return GUI_LATENCY.max() / 1e6;
+    }
+
+    @Override
+    public double getLastSyncDurationMillis() {
+        return SYNC_DURATION.last() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Metrics[messages in=%d out=%d, bytes in=%d out=%d, frames=%d, connections=%d, " +
+                        "disconnects=%d, duplicates=%d, cold history=%.1fMB, queue=%d, ack=%.1fms, " +
+                        "decode p50=%.1fus p99=%.1fus, store p50=%.2fms p99=%.2fms, " +
+                        "gui p50=%.2fms p99=%.2fms max=%.2fms, last sync=%.0fms]",
+                getMessagesIn(), getMessagesOut(), getBytesIn(), getBytesOut(), getFramesIn(), getConnections(),
+                getDisconnects(), getDuplicates(), getColdHistoryBytes() / 1e6, getOutboundQueueDepth(),
+                getAcknowledgmentLatencyMillis(), getDecodeLatencyP50Micros(), getDecodeLatencyP99Micros(),
+                getStoreLatencyP50Millis(), getStoreLatencyP99Millis(), getGuiLatencyP50Millis(),
+                getGuiLatencyP99Millis(), getGuiLatencyMaxMillis(), getLastSyncDurationMillis());
+    }
+
+    /**
+     * <p>
+     * Histogram of durations in nanoseconds with power of two buckets. Percentiles are reported as the upper bound of
+     * the bucket (or the maximum, if it is lower), so they are accurate to a factor of two, which is enough to tell
+     * milliseconds from seconds.
+     * </p>
+     */
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private volatile long last;
+
+        public Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        /**
+         * @param nanos - measured duration
+         */
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos)].increment();
+            max.accumulate(nanos);
+            last = nanos;
+        }
+
+        /**
+         * @param fraction - percentile as a fraction, for example 0.99
+         * @return upper bound of the percentile in nanoseconds, 0 if nothing was recorded
+         */
+        public long percentile(double fraction) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) total += counts[i] = buckets[i].sum();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return i >= 62 ? max.get() : Math.min((2L << i) - 1, max.get());
+            }
+            return max.get();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public long last() {
+            return last;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package engine;
+
+/**
+ * <p>
+ * Management interface of Metrics. Counters are totals since the application started, latencies are percentiles of
+ * all recorded values.
+ * </p>
+ */
+public interface MetricsMBean {
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getFramesIn();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getConnections();
+
+    long getDisconnects();
+
+    long getDuplicates();
+
+    int getOutboundQueueDepth();
+
+    long getColdHistoryBytes();
+
+    double getAcknowledgmentLatencyMillis();
+
+    double getDecodeLatencyP50Micros();
+
+    double getDecodeLatencyP99Micros();
+
+    double getStoreLatencyP50Millis();
+
+    double getStoreLatencyP99Millis();
+
+    double getGuiLatencyP50Millis();
+
+    double getGuiLatencyP99Millis();
+
+    double getGuiLatencyMaxMillis();
+
+    double getLastSyncDurationMillis();
+}
@@ -0,0 +1,140 @@
+package engine;
+
+import informer_api.conversation.Person;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Content-addressed store of contact photos, so that every distinct photo is held once no matter how many times the
+ * phone sends it.
+ * </p>
+ * <p>
+ * Photos are addressed by hash of their bytes (first 64 bits of SHA-256). Interning a photo returns the array already
+ * held for its hash, the received copy becomes garbage right away. Hash of every held array is remembered by
+ * identity, so interning a person whose photo is already held does not hash it again. Since protocol version 4 the PC
+ * tells the phone hashes of held photos and the phone sends only references to them, see net.PhotoDigests.
+ * </p>
+ * <p>
+ * MessageStore keeps photos in a separate file and people records refer to them by hash, so photos survive restarts.
+ * Photos are never dropped, they take little memory compared with messages and the same photo often comes back.
+ * </p>
+ * <p>
+ * Store is used by the network threads and the engine at the same time, so it is synchronized.
+ * </p>
+ */
+public class PhotoStore {
+    private final Map<Long, byte[]> photos = new HashMap<>();
+    private final Map<byte[], Long> hashes = new IdentityHashMap<>();
+    private long bytes;
+
+    /**
+     * @param photo - photo bytes
+     * @return hash addressing the photo
+     */
+    public static long hashOf(byte[] photo) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(photo);
+        long value = 0;
+        for (int i = 0; i < 8; i++) value = (value << 8) | (hash[i] & 0xFF);
+        return value;
+    }
+
+    /**
+     * <p>
+     * Returns photo held for the hash of the provided one, adding the provided one if none is held.
+     * </p>
+     *
+     * @param photo - photo bytes, may be null
+     * @return held photo with the same bytes, null for null
+     */
+    public byte[] intern(byte[] photo) {
+        if (photo == null) return null;
+        synchronized (this) {
+            if (hashes.containsKey(photo)) return photo;
+        }
+        long hash = hashOf(photo);
+        synchronized (this) {
+            byte[] held = photos.get(hash);
+            if (held != null) return held;
+            photos.put(hash, photo);
+            hashes.put(photo, hash);
+            bytes += photo.length;
+            return photo;
+        }
+    }
+
+    /**
+     * @param hash - hash of a photo
+     * @return held photo or null if there is no photo with this hash
+     */
+    public synchronized byte[] get(long hash) {
+        return photos.get(hash);
+    }
+
+    /**
+     * @return hashes of all held photos
+     */
+    public synchronized long[] getHashes() {
+        long[] result = new long[photos.size()];
+        int i = 0;
+        for (Long hash : photos.keySet()) result[i++] = hash;
+        return result;
+    }
+
+    /**
+     * @return number of held photos
+     */
+    public synchronized int size() {
+        return photos.size();
+    }
+
+    /**
+     * @return memory taken by held photos in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * <p>
+     * Returns person with photo held by the store. The person itself is returned if the photo is already held or
+     * there is no photo.
+     * </p>
+     *
+     * @param person - person received from the phone
+     * @return person sharing the held photo
+     */
+    Person intern(Person person) {
+        byte[] photo = person.getPhoto();
+        byte[] held = intern(photo);
+        return held == photo ? person : new Person(person.getNickname(), person.getNumber(), held);
+    }
+
+    /**
+     * @param photo - photo returned by intern, for example photo of a person held by the engine
+     * @return hash of the photo, computed again if the array is not held
+     */
+    public long hashOfHeld(byte[] photo) {
+        Long hash;
+        synchronized (this) {
+            hash = hashes.get(photo);
+        }
+        return hash != null ? hash : hashOf(photo);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PhotoStore[photos=" + photos.size() + ", bytes=" + bytes + "]";
+    }
+}
@@ -0,0 +1,300 @@
+package engine;
+
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * In-memory inverted index of words used in all conversations.
+ * </p>
+ * <p>
+ * Every word is normalized (lower case, diacritics removed) and mapped to postings - positions of messages containing
+ * it, packed as person id and message index into a single long. Postings are stored as varint-encoded differences
+ * between consecutive positions, which usually takes one or two bytes per occurrence, so the index is not much bigger
+ * than the text itself. Words are kept in a sorted map, which makes prefix queries a range lookup.
+ * </p>
+ * <p>
+ * Index is updated incrementally as messages are added to the database. Updates are run by the provided executor,
+ * so that the thread storing messages does not wait for them, which means that messages can be found shortly after
+ * they are stored. Updates are applied in the order they were submitted if the executor runs tasks in order.
+ * Methods are synchronized, but updates tokenize text before taking the lock and insert words in chunks of
+ * ADD_CHUNK messages, so that queries do not wait for whole conversations being indexed.
+ * </p>
+ */
+class SearchIndex {
+    private static final int ADD_CHUNK = 256;
+    private final TreeMap<String, Postings> words = new TreeMap<>();
+    private final Map<String, Integer> personIds = new HashMap<>();
+    private final List<Person> people = new ArrayList<>();
+    private final Executor updates;
+
+    /**
+     * @param updates - executor running index updates, for example Runnable::run to update it synchronously
+     */
+    SearchIndex(Executor updates) {
+        this.updates = updates;
+    }
+
+    /**
+     * <p>
+     * Indexes messages appended to the conversation with the provided person.
+     * </p>
+     *
+     * @param person     - conversation participant
+     * @param firstIndex - position of the first message in the conversation
+     * @param messages   - messages to index, in order, must not be modified afterwards
+     */
+    void add(Person person, int firstIndex, List<Message> messages) {
+        updates.execute(() -> addNow(person, firstIndex, messages));
+    }
+
+    private void addNow(Person person, int firstIndex, List<Message> messages) {
+        for (int from = 0; from < messages.size(); from += ADD_CHUNK) {
+            List<List<String>> tokens = new ArrayList<>(ADD_CHUNK);
+            for (int i = from; i < Math.min(messages.size(), from + ADD_CHUNK); i++) {
+                String text = messages.get(i).getText();
+                tokens.add(text == null ? null : tokenize(text));
+            }
+            insert(person, firstIndex + from, tokens);
+        }
+    }
+
+    private synchronized void insert(Person person, int firstIndex, List<List<String>> tokens) {
+        Integer id = personIds.get(person.getNumber());
+        if (id == null) {
+            id = people.size();
+            personIds.put(person.getNumber(), id);
+            people.add(person);
+        } else {
+            people.set(id, person);
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i) == null) continue;
+            long position = ((long) id << 32) | (firstIndex + i);
+            for (String word : tokens.get(i)) {
+                Postings postings = words.get(word);
+                if (postings == null) {
+                    postings = new Postings();
+                    words.put(word, postings);
+                }
+                postings.add(position);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Finds messages containing every word of the query. Each query word matches words it is a prefix of, so results
+     * are available while the query is being typed.
+     * </p>
+     *
+     * @param query      - words to look for
+     * @param maxResults - maximal number of results
+     * @return matching messages, grouped by conversation, newest first in every conversation
+     */
+    synchronized List<SearchResult> search(String query, int maxResults) {
+        List<String> queryWords = tokenize(query);
+        List<SearchResult> results = new ArrayList<>();
+        if (queryWords.isEmpty()) return results;
+
+        List<Collection<Postings>> matching = new ArrayList<>();
+        for (String word : queryWords) matching.add(words.subMap(word, true, word + Character.MAX_VALUE, false).values());
+        long[] matches;
+        if (matching.size() == 1) {
+            matches = latestPositionsOf(matching.get(0), maxResults);
+        } else {
+            // Start with the most selective word, other words only filter its matches, so big postings are never sorted
+            matching.sort(Comparator.comparingLong(SearchIndex::countOf));
+            matches = positionsOf(matching.get(0));
+            for (int i = 1; i < matching.size() && matches.length > 0; i++)
+                matches = retainPresent(matches, matching.get(i));
+        }
+        for (int i = matches.length - 1; i >= 0 && results.size() < maxResults; i--)
+            results.add(new SearchResult(people.get((int) (matches[i] >>> 32)), (int) matches[i]));
+        return results;
+    }
+
+    /**
+     * <p>
+     * Splits text into normalized words: lower case letters and digits without diacritics.
+     * </p>
+     *
+     * @param text - text to split
+     * @return words in order of appearance, without duplicates
+     */
+    static List<String> tokenize(String text) {
+        String normalized = Normalizer.normalize(text.toLowerCase(), Normalizer.Form.NFD);
+        List<String> tokens = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(c)) {
+                word.append(foldLetter(c));
+            } else if (word.length() > 0) {
+                String token = word.toString();
+                if (!tokens.contains(token)) tokens.add(token);
+                word.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Letters with strokes are not decomposed by Unicode normalization, so they are mapped by hand.
+     */
+    private static char foldLetter(char c) {
+        switch (c) {
+            case 'ł':
+                return 'l';
+            case 'đ':
+                return 'd';
+            case 'ø':
+                return 'o';
+            case 'ß':
+                return 's';
+            default:
+                return c;
+        }
+    }
+
+    private static long countOf(Collection<Postings> postings) {
+        long count = 0;
+        for (Postings p : postings) count += p.count;
+        return count;
+    }
+
+    /**
+     * @return sorted positions of all provided postings, without duplicates
+     */
+    private static long[] positionsOf(Collection<Postings> postings) {
+        long[] positions = new long[(int) countOf(postings)];
+        int filled = 0;
+        for (Postings p : postings) filled = p.copyTo(positions, filled);
+        return sortedUnique(positions, filled);
+    }
+
+    /**
+     * <p>
+     * Returns positions most recently added to any of the provided postings. Only they are sorted, which keeps
+     * queries for very common words or short prefixes fast.
+     * </p>
+     *
+     * @return sorted positions, without duplicates
+     */
+    private static long[] latestPositionsOf(Collection<Postings> postings, int max) {
+        long[] latest = new long[(int) Math.min(countOf(postings), (long) max * postings.size())];
+        long[] decoded = new long[0];
+        int filled = 0;
+        for (Postings p : postings) {
+            if (decoded.length < p.count) decoded = new long[p.count];
+            int count = p.copyTo(decoded, 0);
+            int taken = Math.min(count, max);
+            System.arraycopy(decoded, count - taken, latest, filled, taken);
+            filled += taken;
+        }
+        return sortedUnique(latest, filled);
+    }
+
+    private static long[] sortedUnique(long[] positions, int length) {
+        Arrays.sort(positions, 0, length);
+        int size = 0;
+        for (int i = 0; i < length; i++)
+            if (size == 0 || positions[size - 1] != positions[i]) positions[size++] = positions[i];
+        return Arrays.copyOf(positions, size);
+    }
+
+    /**
+     * <p>
+     * Filters candidates, leaving those present in any of the provided postings. Candidates are put into an open
+     * addressing hash table, so every decoded position is checked in constant time.
+     * </p>
+     *
+     * @return remaining candidates, in order
+     */
+    private static long[] retainPresent(long[] candidates, Collection<Postings> postings) {
+        int mask = Integer.highestOneBit(Math.max(1, candidates.length) * 4 - 1) - 1;
+        long[] keys = new long[mask + 1];
+        int[] slots = new int[mask + 1];
+        for (int i = 0; i < candidates.length; i++) {
+            int slot = hash(candidates[i]) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            keys[slot] = candidates[i];
+            slots[slot] = i + 1;
+        }
+
+        boolean[] present = new boolean[candidates.length];
+        long[] decoded = new long[0];
+        for (Postings p : postings) {
+            if (decoded.length < p.count) decoded = new long[p.count];
+            int count = p.copyTo(decoded, 0);
+            for (int i = 0; i < count; i++) {
+                int slot = hash(decoded[i]) & mask;
+                while (slots[slot] != 0 && keys[slot] != decoded[i]) slot = (slot + 1) & mask;
+                if (slots[slot] != 0) present[slots[slot] - 1] = true;
+            }
+        }
+        int size = 0;
+        for (int i = 0; i < candidates.length; i++)
+            if (present[i]) candidates[size++] = candidates[i];
+        return Arrays.copyOf(candidates, size);
+    }
+
+    private static int hash(long position) {
+        long h = position * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * <p>
+     * Positions of messages containing a single word, kept as zigzag varint-encoded differences.
+     * </p>
+     */
+    private static class Postings {
+        private byte[] data = new byte[4];
+        private int length;
+        private int count;
+        private long last;
+
+        void add(long position) {
+            if (count > 0 && position == last) return;
+            long delta = position - last;
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            if (length + 10 > data.length) data = Arrays.copyOf(data, Math.max(length + 10, data.length * 2));
+            while ((zigzag & ~0x7FL) != 0) {
+                data[length++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            data[length++] = (byte) zigzag;
+            last = position;
+            count++;
+        }
+
+        int copyTo(long[] target, int offset) {
+            long position = 0;
+            int index = 0;
+            for (int i = 0; i < count; i++) {
+                long zigzag = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[index++];
+                    zigzag |= (long) (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                position += (zigzag >>> 1) ^ -(zigzag & 1);
+                target[offset++] = position;
+            }
+            return offset;
+        }
+    }
+}
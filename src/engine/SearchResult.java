@@ -0,0 +1,48 @@
+package engine;
+
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+/**
+ * <p>
+ * Message found by full-text search together with its position in the conversation.
+ * </p>
+ */
+public class SearchResult {
+    private final Person person;
+    private final int messageIndex;
+    private final Message message;
+
+    SearchResult(Person person, int messageIndex) {
+        this(person, messageIndex, null);
+    }
+
+    SearchResult(Person person, int messageIndex, Message message) {
+        this.person = person;
+        this.messageIndex = messageIndex;
+        this.message = message;
+    }
+
+    public Person getPerson() {
+        return person;
+    }
+
+    /**
+     * @return position of the message in the conversation
+     */
+    public int getMessageIndex() {
+        return messageIndex;
+    }
+
+    /**
+     * @return found message, may be null if it could not be read
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return person.getNickname() + ": " + (message == null ? "" : message.getText());
+    }
+}
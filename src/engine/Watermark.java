@@ -0,0 +1,42 @@
+package engine;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * Describes how much of a conversation with one person is already stored on the PC. Watermarks are sent to the phone
+ * on connection so that it can send only messages that are missing.
+ * </p>
+ */
+public class Watermark implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final int messageCount;
+    private final String lastMessageDate;
+
+    public Watermark(int messageCount, String lastMessageDate) {
+        this.messageCount = messageCount;
+        this.lastMessageDate = lastMessageDate;
+    }
+
+    /**
+     * <p>
+     * Returns number of messages stored for the conversation. Phone should send messages starting from this index.
+     * </p>
+     *
+     * @return number of stored messages
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * <p>
+     * Returns date of the last stored message, allowing phone to verify that message indices still match.
+     * </p>
+     *
+     * @return date in "dd/MM/yyyy HH:mm:ss" format or null for empty conversations
+     */
+    public String getLastMessageDate() {
+        return lastMessageDate;
+    }
+}
@@ -15,8 +15,6 @@ import javafx.scene.layout.Pane;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 
-import java.io.ByteArrayInputStream;
-
 /**
  * <p>
  * Class displaying person for conversation data.
@@ -24,17 +22,26 @@ import java.io.ByteArrayInputStream;
  * Created by Piotr Waszkiewicz on 31.01.17.
  */
 class ContactCell extends JFXListCell<Person> {
+    private final ThumbnailCache thumbnails;
+    private final NotificationCenter notifications;
     private Person person;
+    private Long photoKey;
     private HBox contactWithPhoto = new HBox();
     private VBox contactInfo = new VBox();
     private Pane pane = new Pane();
     private ImageView photoImage = new ImageView();
     private Label contactName = new Label(), contactNumber = new Label();
+    private Label unreadBadge = new Label();
 
-    ContactCell() {
+    ContactCell(ThumbnailCache thumbnails, NotificationCenter notifications) {
         super();
+        this.thumbnails = thumbnails;
+        this.notifications = notifications;
+        unreadBadge.setStyle("-fx-background-color: #e53935; -fx-background-radius: 10; -fx-text-fill: white; " +
+                "-fx-font-weight: bold; -fx-padding: 1 6 1 6;");
         contactInfo.getChildren().addAll(contactName, contactNumber);
-        contactWithPhoto.getChildren().addAll(photoImage, contactInfo);
+        contactWithPhoto.getChildren().addAll(photoImage, contactInfo, pane, unreadBadge);
+        contactWithPhoto.setAlignment(Pos.CENTER_LEFT);
         VBox.setVgrow(contactName, Priority.ALWAYS);
         HBox.setHgrow(pane, Priority.ALWAYS);
         setOnMousePressed((MouseEvent e) -> loadConversationWithSelectedPerson());
@@ -55,14 +62,38 @@ class ContactCell extends JFXListCell<Person> {
             contactNumber.setAlignment(Pos.BASELINE_LEFT);
             contactInfo.setAlignment(Pos.BASELINE_LEFT);
             contactInfo.setPadding(new Insets(5));
-            if (person.getPhoto() != null) {
-                photoImage.setImage(new Image(new ByteArrayInputStream(person.getPhoto()), 30, 30, true, true));
-            } else photoImage.setImage(null);
+            showPhoto(person.getPhoto());
+            showUnread(notifications.getUnread(person));
             contactWithPhoto.setMouseTransparent(true);
             setGraphic(contactWithPhoto);
         }
     }
 
+    /**
+     * <p>
+     * Shows cached thumbnail of the photo, or placeholder until it is decoded. Cell may be reused for another person
+     * before decoding finishes, so the thumbnail is shown only if the cell still displays the same photo.
+     * </p>
+     */
+    private void showPhoto(byte[] photo) {
+        if (photo == null) {
+            photoKey = null;
+            photoImage.setImage(null);
+            return;
+        }
+        long key = MainEngine.getInstance().getPhotoStore().hashOfHeld(photo);
+        photoKey = key;
+        Image thumbnail = thumbnails.get(key, photo, (Image decoded) -> {
+            if (photoKey != null && photoKey == key) photoImage.setImage(decoded);
+        });
+        photoImage.setImage(thumbnail != null ? thumbnail : thumbnails.getPlaceholder());
+    }
+
+    private void showUnread(int count) {
+        unreadBadge.setText(count > 99 ? "99+" : String.valueOf(count));
+        unreadBadge.setVisible(count > 0);
+    }
+
     private void loadConversationWithSelectedPerson() {
         try {
             System.out.println("Clicked on person " + person.getNickname());
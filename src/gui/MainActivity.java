@@ -3,25 +3,35 @@ package gui;
 import com.jfoenix.controls.JFXButton;
 import com.jfoenix.controls.JFXListView;
 import com.jfoenix.controls.JFXTextArea;
-import com.vdurmont.emoji.EmojiParser;
+import com.jfoenix.controls.JFXTextField;
+import com.sun.org.apache.xml.internal.security.signature.ReferenceNotInitializedException;
+import engine.ConversationSnapshot;
+import engine.EmojiShortcodes;
+import engine.EngineListener;
 import engine.MainEngine;
+import engine.SearchResult;
 import informer_api.conversation.Conversation;
 import informer_api.conversation.Message;
 import informer_api.conversation.Person;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXMLLoader;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.layout.Pane;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
+import javafx.util.Duration;
 
 import java.io.IOException;
 import java.util.List;
@@ -40,8 +50,17 @@ import java.util.Optional;
  * this could be solved by assigning onAction listener for MenuItem in code rather than .fxml file).
  * </p>
  */
-public class MainActivity extends Application {
+public class MainActivity extends Application implements EngineListener {
     public static final String APPLICATION_NAME = "Informer";
+    /**
+     * Maximal number of messages kept in conversation view. Pages far from the visible part are dropped past it.
+     */
+    private static final int MAX_DISPLAYED_MESSAGES = 4 * MainEngine.PAGE_SIZE;
+    private static final long THUMBNAIL_CACHE_BYTES = 16 * 1024 * 1024;
+    /**
+     * Time without keystrokes after which the search query is run.
+     */
+    private static final Duration SEARCH_DELAY = Duration.millis(150);
     private static Dialog<Void> connectionWaitDialog; // this is static because starting server via menuItem invokes whole procedure from other MainActivity instance!
     private int serverPort = 8888;
     private Stage window;
@@ -49,8 +68,16 @@ public class MainActivity extends Application {
     private JFXButton sendButton;
     private JFXListView<Person> conversations;
     private JFXListView<Message> conversation;
+    private JFXTextField searchField;
+    private JFXListView<SearchResult> searchResults;
+    private PauseTransition searchDelay;
     private ObservableList<Person> people = FXCollections.observableArrayList();
     private ObservableList<Message> messages = FXCollections.observableArrayList();
+    private ThumbnailCache thumbnails = new ThumbnailCache(THUMBNAIL_CACHE_BYTES);
+    private NotificationCenter notifications;
+    private Person displayedPerson;
+    private int windowStart, totalCount;
+    private boolean pageRequested;
 
     @Override
     public void start(Stage window) throws Exception {
@@ -58,13 +85,20 @@ public class MainActivity extends Application {
         Parent root = FXMLLoader.load(getClass().getResource("main.fxml"));
         Scene scene = new Scene(root);
         setFieldReferences(scene);
-        if (messageText == null || sendButton == null || conversations == null || conversation == null)
+        if (messageText == null || sendButton == null || conversations == null || conversation == null ||
+                searchField == null || searchResults == null)
             throw new IllegalArgumentException("Cannot find required fields on the provided scene!");
+        EmojiShortcodes.preload();
+        notifications = new NotificationCenter((Pane) root, conversations::refresh);
         formatFields();
-        MainEngine.getInstance().setMainGuiReference(this);
+        MainEngine.getInstance().setListener(this, Platform::runLater);
         window.setTitle(APPLICATION_NAME);
         window.setScene(scene);
+        window.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            if (focused && displayedPerson != null) notifications.markRead(displayedPerson);
+        });
         window.show();
+        attachPagingListener();
     }
 
     @Override
@@ -79,46 +113,159 @@ public class MainActivity extends Application {
      * Loads provided messages into conversation view where user can view them.
      * After loading conversation, list view is scrolled to the bottom to show most recent messages.
      * </p>
+     * <p>
+     * Provided snapshot is usually only the most recent page of the conversation. Other pages are requested when
+     * user scrolls to the top or to the bottom of the view, see showPage.
+     * </p>
      *
      * @param conversation - messages to display
      */
-    public void loadConversation(Conversation conversation) {
-        messages.clear();
-        messages.addAll(conversation.getMessages());
-        this.conversation.scrollTo(conversation.getMessages().size() - 1);
+    @Override
+    public void loadConversation(ConversationSnapshot conversation) {
+        displayedPerson = conversation.getPerson();
+        notifications.markRead(displayedPerson);
+        windowStart = conversation.getFirstIndex();
+        totalCount = conversation.getTotalCount();
+        pageRequested = false;
+        messages.setAll(conversation.getMessages());
+        this.conversation.scrollTo(messages.size() - 1);
+    }
+
+    /**
+     * <p>
+     * Loads provided page of the conversation and selects the message at the provided position.
+     * </p>
+     *
+     * @param page         - page of the conversation containing the message
+     * @param messageIndex - position of the message in the whole conversation
+     */
+    @Override
+    public void showConversationAt(ConversationSnapshot page, int messageIndex) {
+        loadConversation(page);
+        int position = messageIndex - windowStart;
+        if (position < 0 || position >= messages.size()) return;
+        conversation.scrollTo(Math.max(0, position - 2));
+        conversation.getSelectionModel().select(position);
+    }
+
+    /**
+     * <p>
+     * Adds page of messages directly preceding or following displayed ones. Messages on the opposite end are dropped
+     * when too many messages are displayed, so memory used by the view does not depend on the conversation length.
+     * </p>
+     *
+     * @param page - page of the displayed conversation
+     */
+    @Override
+    public void showPage(ConversationSnapshot page) {
+        if (displayedPerson == null || !displayedPerson.equals(page.getPerson())) return;
+        pageRequested = false;
+        totalCount = Math.max(totalCount, page.getTotalCount());
+        List<Message> pageMessages = page.getMessages();
+        if (pageMessages.isEmpty()) return;
+
+        int windowEnd = windowStart + messages.size();
+        if (page.getFirstIndex() + pageMessages.size() == windowStart) {
+            messages.addAll(0, pageMessages);
+            windowStart = page.getFirstIndex();
+            if (messages.size() > MAX_DISPLAYED_MESSAGES) messages.remove(MAX_DISPLAYED_MESSAGES, messages.size());
+            conversation.scrollTo(pageMessages.size());
+        } else if (page.getFirstIndex() == windowEnd) {
+            messages.addAll(pageMessages);
+            int lastPrevious = messages.size() - pageMessages.size() - 1 - trimOldestMessages();
+            conversation.scrollTo(Math.max(0, lastPrevious));
+        }
+    }
+
+    /**
+     * <p>
+     * Appends new messages to the end of displayed conversation and scrolls to the last one. Already displayed
+     * messages are not touched, so the cost does not depend on the conversation length.
+     * </p>
+     * <p>
+     * Conversation may have been reloaded between adding messages to the database and this call, so messages that are
+     * already displayed are skipped. If some messages are missing in between, the whole conversation is reloaded.
+     * </p>
+     *
+     * @param person      - person the messages were exchanged with
+     * @param firstIndex  - position of the first new message in the whole conversation
+     * @param newMessages - messages to append
+     */
+    @Override
+    public void appendMessages(Person person, int firstIndex, List<Message> newMessages) {
+        if (displayedPerson == null || !displayedPerson.equals(person)) return;
+        int windowEnd = windowStart + messages.size();
+        boolean showsNewest = windowEnd >= totalCount;
+        totalCount = Math.max(totalCount, firstIndex + newMessages.size());
+        // User reads older messages, new ones will be loaded as a page after scrolling down
+        if (!showsNewest) return;
+
+        int alreadyDisplayed = windowEnd - firstIndex;
+        if (alreadyDisplayed < 0) {
+            try {
+                MainEngine.getInstance().loadConversation(person);
+            } catch (ReferenceNotInitializedException e) {
+                System.err.println("MainActivity: " + e.getMessage());
+            }
+            return;
+        }
+        if (alreadyDisplayed >= newMessages.size()) return;
+        messages.addAll(newMessages.subList(alreadyDisplayed, newMessages.size()));
+        trimOldestMessages();
+        conversation.scrollTo(messages.size() - 1);
     }
 
     /**
      * <p>
      * Loads provided people into contact list and displays their info.
-     * This method sorts list by phone numbers in a descending order.
+     * List comes already sorted by the engine.
      * </p>
      *
      * @param peopleList - list of contacts to have conversation with
      */
+    @Override
     public void loadPeople(List<Person> peopleList) {
-        people.clear();
-        peopleList.sort((Person p1, Person p2) -> p1.getNumber().compareTo(p2.getNumber()));
-        people.addAll(peopleList);
+        people.setAll(peopleList);
+    }
+
+    @Override
+    public void contactInserted(Person person, int index) {
+        if (index > people.size()) {
+            people.add(person);
+            return;
+        }
+        people.add(index, person);
+    }
+
+    /**
+     * <p>
+     * Moves person on the contact list without rebuilding it, keeping the selection.
+     * </p>
+     */
+    @Override
+    public void contactMoved(Person person, int from, int to) {
+        if (from >= people.size() || !people.get(from).equals(person)) from = people.indexOf(person);
+        if (from < 0) return;
+        boolean selected = conversations.getSelectionModel().getSelectedIndex() == from;
+        people.remove(from);
+        people.add(Math.min(to, people.size()), person);
+        if (selected) conversations.getSelectionModel().select(person);
     }
 
     /**
      * <p>
-     * Shows dialog window informing about new messages and their content.
+     * Informs about new messages. Messages are marked as unread on the contact list and summarized in a toast shown
+     * shortly after, together with other messages received in the meantime. Nothing is shown for messages of the
+     * displayed conversation while the window is focused.
      * </p>
      *
      * @param newConversation - object containing both person and messages data
      */
+    @Override
     public void showNewMessageInformation(Conversation newConversation) {
         Person person = newConversation.getPerson();
-        StringBuilder messagesContent = new StringBuilder();
-        for (Message m : newConversation.getMessages()) messagesContent.append(m.getText() + "\n");
-
-        Alert alert = new Alert(Alert.AlertType.INFORMATION);
-        alert.setTitle("New Message");
-        alert.setHeaderText("You got new message(s) from " + person.getNickname() + " (" + person.getNumber() + ")");
-        alert.setContentText(messagesContent.toString());
-        alert.showAndWait();
+        boolean visible = window.isFocused() && displayedPerson != null && displayedPerson.equals(person);
+        notifications.add(newConversation, visible);
     }
 
     /**
@@ -126,9 +273,25 @@ public class MainActivity extends Application {
      * Clears everything shown on the screen.
      * </p>
      */
+    @Override
     public void clearAllViews() {
         people.clear();
         messages.clear();
+        displayedPerson = null;
+        windowStart = totalCount = 0;
+    }
+
+    /**
+     * <p>
+     * Closes waiting dialog when phone connects and shows it again when connection is lost.
+     * </p>
+     *
+     * @param isConnected - true if phone is connected
+     */
+    @Override
+    public void connectionStateChanged(boolean isConnected) {
+        if (isConnected) closeWaitingDialog();
+        else showWaitingDialog();
     }
 
     /**
@@ -214,6 +377,36 @@ public class MainActivity extends Application {
         sendButton = (JFXButton) scene.lookup("#send-message");
         conversations = (JFXListView<Person>) scene.lookup("#conversations");
         conversation = (JFXListView<Message>) scene.lookup("#conversation");
+        searchField = (JFXTextField) scene.lookup("#search");
+        searchResults = (JFXListView<SearchResult>) scene.lookup("#search-results");
+    }
+
+    /**
+     * <p>
+     * Replaces emoji shortcode with emoji when the edit completes it. Only the text just before the caret is examined,
+     * so typing stays cheap in long messages, and the caret is placed right after the inserted emoji.
+     * </p>
+     *
+     * @param change - edit of the message text
+     * @return the same change, modified if it completed a shortcode
+     */
+    private TextFormatter.Change replaceCompletedShortcode(TextFormatter.Change change) {
+        String added = change.getText();
+        if (added.isEmpty()) return change;
+        int start = change.getRangeStart();
+        EmojiShortcodes.Match match = EmojiShortcodes.getInstance()
+                .findEndingAt(change.getControlNewText(), start + added.length());
+        if (match == null) return change;
+
+        if (match.getStart() < start) {
+            change.setRange(match.getStart(), change.getRangeEnd());
+            change.setText(match.getEmoji());
+        } else {
+            change.setText(added.substring(0, match.getStart() - start) + match.getEmoji());
+        }
+        int caret = match.getStart() + match.getEmoji().length();
+        change.selectRange(caret, caret);
+        return change;
     }
 
     private void formatFields() {
@@ -223,26 +416,29 @@ public class MainActivity extends Application {
                 event.consume();
                 sendButton.fire();
             }
-            else {
-                int newCaretPosition = messageText.getCaretPosition();
-                String text = EmojiParser.parseToUnicode(messageText.getText());
-                messageText.setText(text);
-                messageText.positionCaret(newCaretPosition);
-            }
         });
+        messageText.setTextFormatter(new TextFormatter<String>(this::replaceCompletedShortcode));
         sendButton.setOnAction((ActionEvent e) -> {
             if (messageText.getText().length() > 0) {
-                MainEngine.getInstance().sendMessageToPhone(messageText.getText());
-                messageText.clear();
+                if (MainEngine.getInstance().sendMessageToPhone(messageText.getText())) messageText.clear();
+                else showSendingError();
             }
         });
 
         conversations.setItems(people);
         conversations.setCellFactory((ListView<Person> view) -> {
-            ContactCell cell = new ContactCell();
+            ContactCell cell = new ContactCell(thumbnails, notifications);
             cell.prefWidthProperty().bind(conversations.widthProperty().subtract(25));
             return cell;
         });
+        searchDelay = new PauseTransition(SEARCH_DELAY);
+        searchDelay.setOnFinished(event -> runSearch(searchField.getText()));
+        searchField.textProperty().addListener((observable, oldText, newText) -> showSearchResults(newText));
+        searchResults.setOnMouseClicked(event -> openSelectedSearchResult());
+        searchResults.setOnKeyPressed(event -> {
+            if (event.getCode().equals(KeyCode.ENTER)) openSelectedSearchResult();
+        });
+
         conversation.setItems(messages);
         conversation.setCellFactory((ListView<Message> view) -> {
             MessageCell cell = new MessageCell();
@@ -250,4 +446,100 @@ public class MainActivity extends Application {
             return cell;
         });
     }
+
+    /**
+     * <p>
+     * Requests next page of messages when conversation view is scrolled to the top or to the bottom. Scroll bar is
+     * created by the list view skin, so this must be invoked after the window is shown.
+     * </p>
+     */
+    private void attachPagingListener() {
+        for (Node node : conversation.lookupAll(".scroll-bar")) {
+            if (!(node instanceof ScrollBar) || ((ScrollBar) node).getOrientation() != Orientation.VERTICAL) continue;
+            ScrollBar scrollBar = (ScrollBar) node;
+            scrollBar.valueProperty().addListener((observable, oldValue, newValue) -> {
+                if (pageRequested || displayedPerson == null) return;
+                int windowEnd = windowStart + messages.size();
+                try {
+                    if (newValue.doubleValue() <= scrollBar.getMin() && windowStart > 0) {
+                        pageRequested = true;
+                        int from = Math.max(0, windowStart - MainEngine.PAGE_SIZE);
+                        MainEngine.getInstance().loadMessages(displayedPerson, from, windowStart - from);
+                    } else if (newValue.doubleValue() >= scrollBar.getMax() && windowEnd < totalCount) {
+                        pageRequested = true;
+                        MainEngine.getInstance().loadMessages(displayedPerson, windowEnd, MainEngine.PAGE_SIZE);
+                    }
+                } catch (ReferenceNotInitializedException e) {
+                    pageRequested = false;
+                }
+            });
+        }
+    }
+
+    /**
+     * <p>
+     * Shows messages matching the query instead of contact list, or brings contact list back if query is empty.
+     * Query is run by the engine once no key was pressed for SEARCH_DELAY, results of the previous query are shown
+     * until then.
+     * </p>
+     */
+    private void showSearchResults(String query) {
+        boolean searching = query != null && !query.trim().isEmpty();
+        if (searching) {
+            searchDelay.playFromStart();
+        } else {
+            searchDelay.stop();
+            searchResults.getItems().clear();
+        }
+        searchResults.setVisible(searching);
+        searchResults.setManaged(searching);
+        conversations.setVisible(!searching);
+        conversations.setManaged(!searching);
+    }
+
+    private void runSearch(String query) {
+        MainEngine.getInstance().search(query, (List<SearchResult> results) -> {
+            // Results of a query that was typed over in the meantime are not shown
+            if (query.equals(searchField.getText())) searchResults.getItems().setAll(results);
+        });
+    }
+
+    private void openSelectedSearchResult() {
+        SearchResult result = searchResults.getSelectionModel().getSelectedItem();
+        if (result == null) return;
+        try {
+            MainEngine.getInstance().loadConversationAt(result.getPerson(), result.getMessageIndex());
+        } catch (ReferenceNotInitializedException e) {
+            System.err.println("MainActivity: " + e.getMessage());
+        }
+    }
+
+    /**
+     * <p>
+     * Drops the oldest displayed messages if there are too many of them.
+     * </p>
+     *
+     * @return number of dropped messages
+     */
+    private int trimOldestMessages() {
+        int excess = messages.size() - MAX_DISPLAYED_MESSAGES;
+        if (excess <= 0) return 0;
+        messages.remove(0, excess);
+        windowStart += excess;
+        return excess;
+    }
+
+    /**
+     * <p>
+     * Informs that message could not be queued for sending. Typed text is kept so that user can retry.
+     * </p>
+     */
+    private void showSendingError() {
+        Alert alert = new Alert(Alert.AlertType.WARNING);
+        alert.setTitle("Message not sent");
+        alert.setHeaderText(null);
+        alert.setContentText("Message could not be sent right now. Too many messages are waiting for the phone or " +
+                "no conversation is opened. Please try again in a moment.");
+        alert.showAndWait();
+    }
 }
@@ -0,0 +1,184 @@
+package gui;
+
+import com.jfoenix.controls.JFXSnackbar;
+import com.jfoenix.controls.JFXSnackbarLayout;
+import com.sun.org.apache.xml.internal.security.signature.ReferenceNotInitializedException;
+import engine.MainEngine;
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+import javafx.animation.Animation;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.scene.layout.Pane;
+import javafx.util.Duration;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Informs about new messages without interrupting the user.
+ * </p>
+ * <p>
+ * Messages are counted as unread per person (shown as badges on the contact list) and grouped for a short while
+ * before a single non-modal toast summarizing them is shown. Toasts are shown no more often than once per
+ * MIN_TOAST_INTERVAL, messages arriving in between are added to the next one. This way a burst of hundreds of
+ * messages results in one or two toasts instead of a dialog per message.
+ * </p>
+ * <p>
+ * Messages from the person whose conversation is displayed in the focused window are considered read.
+ * </p>
+ * <p>
+ * Class is not synchronized, it must be used on the JavaFX thread only.
+ * </p>
+ */
+class NotificationCenter {
+    /**
+     * Time for which messages are collected before a toast is shown.
+     */
+    static final Duration COALESCING_WINDOW = Duration.millis(1500);
+    /**
+     * Minimal time between two toasts.
+     */
+    static final Duration MIN_TOAST_INTERVAL = Duration.seconds(4);
+    private static final Duration TOAST_DURATION = Duration.millis(3500);
+    private static final int PREVIEW_LENGTH = 80;
+
+    private final JFXSnackbar snackbar;
+    private final Runnable unreadChanged;
+    private final Map<String, Integer> unread = new HashMap<>();
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    private final PauseTransition flushTimer = new PauseTransition();
+    private long lastToastTime = Long.MIN_VALUE / 2;
+    private boolean refreshScheduled;
+
+    /**
+     * @param container     - pane in which toasts are shown
+     * @param unreadChanged - invoked when number of unread messages of any person changes
+     */
+    NotificationCenter(Pane container, Runnable unreadChanged) {
+        this.snackbar = new JFXSnackbar(container);
+        this.unreadChanged = unreadChanged;
+        flushTimer.setOnFinished(event -> showToast());
+    }
+
+    /**
+     * <p>
+     * Records new messages and schedules toast informing about them.
+     * </p>
+     *
+     * @param newMessages - person and their new messages
+     * @param read        - true if messages are already visible to the user
+     */
+    void add(Conversation newMessages, boolean read) {
+        List<Message> list = newMessages.getMessages();
+        if (read || list.isEmpty()) return;
+        Person person = newMessages.getPerson();
+        unread.merge(person.getNumber(), list.size(), Integer::sum);
+        fireUnreadChanged();
+
+        Pending group = pending.get(person.getNumber());
+        if (group == null) {
+            group = new Pending(person);
+            pending.put(person.getNumber(), group);
+        }
+        group.count += list.size();
+        group.lastText = list.get(list.size() - 1).getText();
+
+        if (flushTimer.getStatus() != Animation.Status.RUNNING) {
+            long sinceLastToast = System.currentTimeMillis() - lastToastTime;
+            double delay = Math.max(COALESCING_WINDOW.toMillis(), MIN_TOAST_INTERVAL.toMillis() - sinceLastToast);
+            flushTimer.setDuration(Duration.millis(delay));
+            flushTimer.playFromStart();
+        }
+    }
+
+    /**
+     * @param person - contact
+     * @return number of messages from the person that were not seen yet
+     */
+    int getUnread(Person person) {
+        Integer count = unread.get(person.getNumber());
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * <p>
+     * Marks all messages from the person as read, for example after their conversation was opened.
+     * </p>
+     *
+     * @param person - contact
+     */
+    void markRead(Person person) {
+        pending.remove(person.getNumber());
+        if (unread.remove(person.getNumber()) != null) fireUnreadChanged();
+    }
+
+    /**
+     * <p>
+     * Batches arrive as separate events, so the contact list is refreshed once after all of the queued ones instead
+     * of after each.
+     * </p>
+     */
+    private void fireUnreadChanged() {
+        if (refreshScheduled) return;
+        refreshScheduled = true;
+        Platform.runLater(() -> {
+            refreshScheduled = false;
+            unreadChanged.run();
+        });
+    }
+
+    private void showToast() {
+        if (pending.isEmpty()) return;
+        lastToastTime = System.currentTimeMillis();
+        int messages = 0;
+        for (Pending group : pending.values()) messages += group.count;
+
+        JFXSnackbarLayout content;
+        if (pending.size() == 1) {
+            Pending group = pending.values().iterator().next();
+            String header = group.count == 1 ? "New message from " : group.count + " new messages from ";
+            content = new JFXSnackbarLayout(header + group.person.getNickname() + ": " + preview(group.lastText),
+                    "OPEN", event -> openConversation(group.person));
+        } else {
+            content = new JFXSnackbarLayout(messages + " new messages from " + pending.size() + " people");
+        }
+        pending.clear();
+        snackbar.close();
+        snackbar.enqueue(new JFXSnackbar.SnackbarEvent(content, TOAST_DURATION));
+    }
+
+    private void openConversation(Person person) {
+        snackbar.close();
+        try {
+            MainEngine.getInstance().loadConversation(person);
+        } catch (ReferenceNotInitializedException e) {
+            System.err.println("NotificationCenter: " + e.getMessage());
+        }
+    }
+
+    private static String preview(String text) {
+        if (text == null) return "";
+        text = text.replace('\n', ' ');
+        return text.length() <= PREVIEW_LENGTH ? text : text.substring(0, PREVIEW_LENGTH - 1) + "…";
+    }
+
+    /**
+     * <p>
+     * Messages from a single person waiting to be shown in a toast.
+     * </p>
+     */
+    private static class Pending {
+        private final Person person;
+        private int count;
+        private String lastText;
+
+        Pending(Person person) {
+            this.person = person;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package gui;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Cache of decoded contact photo thumbnails shared by all contact cells.
+ * </p>
+ * <p>
+ * Thumbnails are keyed by a hash of photo content, so the same photo is decoded only once no matter how many times
+ * cells are updated or people are reloaded. Photos of people are interned by the engine, so cells take their hashes
+ * from PhotoStore instead of hashing photos on the JavaFX thread. Decoding is done on background threads, cells show a placeholder until
+ * their thumbnail is ready. Least recently used thumbnails are evicted once their total size exceeds the limit.
+ * </p>
+ * <p>
+ * Cache is not synchronized, it must be used on the JavaFX thread only.
+ * </p>
+ */
+class ThumbnailCache {
+    static final int THUMBNAIL_SIZE = 30;
+    private static final int DECODING_THREADS = 2;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Long, Image> thumbnails = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Long, List<Consumer<Image>>> pending = new HashMap<>();
+    private final ExecutorService decoder;
+    private final Image placeholder;
+    private long usedBytes;
+
+    /**
+     * @param maxBytes - memory limit of decoded thumbnails
+     */
+    ThumbnailCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        decoder = Executors.newFixedThreadPool(DECODING_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "ThumbnailCache decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        placeholder = createPlaceholder();
+    }
+
+    /**
+     * <p>
+     * Returns image shown while thumbnail is decoded.
+     * </p>
+     *
+     * @return placeholder image
+     */
+    Image getPlaceholder() {
+        return placeholder;
+    }
+
+    /**
+     * <p>
+     * Returns decoded thumbnail if it is cached. Otherwise decoding is started (unless it is already in progress) and
+     * the callback is invoked on the JavaFX thread when thumbnail is ready.
+     * </p>
+     *
+     * @param key     - content hash, see PhotoStore.hashOfHeld
+     * @param photo   - encoded photo
+     * @param onReady - invoked with decoded thumbnail if it was not cached
+     * @return cached thumbnail or null if it is being decoded
+     */
+    Image get(long key, byte[] photo, Consumer<Image> onReady) {
+        Image cached = thumbnails.get(key);
+        if (cached != null) return cached;
+
+        List<Consumer<Image>> waiting = pending.get(key);
+        if (waiting != null) {
+            waiting.add(onReady);
+            return null;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(onReady);
+        pending.put(key, waiting);
+        decoder.execute(() -> {
+            Image image = new Image(new ByteArrayInputStream(photo), THUMBNAIL_SIZE, THUMBNAIL_SIZE, true, true);
+            Platform.runLater(() -> finishDecoding(key, image));
+        });
+        return null;
+    }
+
+    private void finishDecoding(long key, Image image) {
+        List<Consumer<Image>> waiting = pending.remove(key);
+        if (image.isError()) {
+            System.err.println("ThumbnailCache: could not decode photo: " + image.getException());
+            image = placeholder;
+        } else {
+            put(key, image);
+        }
+        if (waiting != null)
+            for (Consumer<Image> callback : waiting) callback.accept(image);
+    }
+
+    private void put(long key, Image image) {
+        Image previous = thumbnails.put(key, image);
+        if (previous != null) usedBytes -= weightOf(previous);
+        usedBytes += weightOf(image);
+
+        Iterator<Image> eldest = thumbnails.values().iterator();
+        while (usedBytes > maxBytes && thumbnails.size() > 1) {
+            usedBytes -= weightOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private static long weightOf(Image image) {
+        return 4L * (long) image.getWidth() * (long) image.getHeight();
+    }
+
+    private static Image createPlaceholder() {
+        WritableImage image = new WritableImage(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+        PixelWriter writer = image.getPixelWriter();
+        double radius = THUMBNAIL_SIZE / 2.0;
+        for (int x = 0; x < THUMBNAIL_SIZE; x++) {
+            for (int y = 0; y < THUMBNAIL_SIZE; y++) {
+                double dx = x + 0.5 - radius, dy = y + 0.5 - radius;
+                writer.setColor(x, y, dx * dx + dy * dy <= radius * radius ? Color.LIGHTGRAY : Color.TRANSPARENT);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,18 @@
+package net;
+
+/**
+ * <p>
+ * Confirmation sent by the phone after it handled message with the provided sequence number.
+ * </p>
+ */
+class Acknowledgment {
+    private final long id;
+
+    Acknowledgment(long id) {
+        this.id = id;
+    }
+
+    long getId() {
+        return id;
+    }
+}
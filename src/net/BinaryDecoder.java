@@ -0,0 +1,101 @@
+package net;
+
+import engine.Metrics;
+import engine.PhotoStore;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * Decoder reading length-prefixed binary frames from a stream. Payload buffers are reused between frames, compressed
+ * payloads are inflated with FrameCompressor.
+ * </p>
+ */
+class BinaryDecoder implements MessageDecoder {
+    private final InputStream inStream;
+    private final FrameCodec codec;
+    private final FrameCompressor compressor;
+    private final FrameBuffer payload = new FrameBuffer(4096);
+    private final FrameBuffer compressed = new FrameBuffer(4096);
+
+    BinaryDecoder(InputStream inStream, int version) {
+        this(inStream, version, null);
+    }
+
+    /**
+     * @param inStream - stream of frames
+     * @param version  - negotiated protocol version
+     * @param photos   - store interning received photos and resolving references to them
+     */
+    BinaryDecoder(InputStream inStream, int version, PhotoStore photos) {
+        this.inStream = inStream;
+        codec = new FrameCodec(version, photos);
+        compressor = new FrameCompressor(version);
+    }
+
+    @Override
+    public Object read() throws IOException {
+        int type = readByte();
+        int length = readLength();
+        long start;
+        if ((type & FrameCompressor.COMPRESSED_FLAG) != 0) {
+            compressed.prepareForRead(length);
+            readFully(compressed.array(), length);
+            start = System.nanoTime();
+            compressor.decompress(compressed, payload);
+            type &= ~FrameCompressor.COMPRESSED_FLAG;
+        } else {
+            payload.prepareForRead(length);
+            readFully(payload.array(), length);
+            start = System.nanoTime();
+            compressor.recordPlainFrame(length);
+        }
+        Object decoded = codec.decode(type, payload);
+        Metrics.DECODE_LATENCY.record(System.nanoTime() - start);
+        return decoded;
+    }
+
+    @Override
+    public void close() {
+        try {
+            inStream.close();
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryDecoder[" + compressor + "]";
+    }
+
+    private int readByte() throws IOException {
+        int b = inStream.read();
+        if (b < 0) throw new EOFException("Connection closed by phone");
+        return b;
+    }
+
+    private int readLength() throws IOException {
+        int length = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (length < 0 || length > FrameCodec.MAX_FRAME_SIZE)
+                    throw new IOException("Frame size " + length + " exceeds limit");
+                return length;
+            }
+        }
+        throw new IOException("Malformed frame length");
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = inStream.read(buffer, offset, length - offset);
+            if (read < 0) throw new EOFException("Connection closed in the middle of a frame");
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Encoder writing length-prefixed binary frames to a stream. Payloads are compressed when negotiated protocol version
+ * allows it and FrameCompressor finds it worthwhile.
+ * </p>
+ */
+class BinaryEncoder implements MessageEncoder {
+    private final OutputStream outStream;
+    private final FrameCodec codec;
+    private final FrameCompressor compressor;
+    private final FrameBuffer header = new FrameBuffer(16);
+    private final FrameBuffer payload = new FrameBuffer(4096);
+    private final FrameBuffer compressed = new FrameBuffer(4096);
+
+    BinaryEncoder(OutputStream outStream, int version) {
+        this.outStream = outStream;
+        codec = new FrameCodec(version, null);
+        compressor = new FrameCompressor(version);
+    }
+
+    @Override
+    public void write(Object object) throws IOException {
+        payload.reset();
+        int type = codec.encode(object, payload);
+        FrameBuffer body = payload;
+        if (compressor.compress(payload, codec.getPhotoBytes(), compressed)) {
+            type |= FrameCompressor.COMPRESSED_FLAG;
+            body = compressed;
+        }
+        header.reset();
+        header.writeByte(type);
+        header.writeVarInt(body.size());
+        outStream.write(header.array(), 0, header.size());
+        outStream.write(body.array(), 0, body.size());
+    }
+
+    /**
+     * @param hashes - hashes of photos held by the PC, sent as references from now on
+     */
+    void addKnownPhotos(long[] hashes) {
+        codec.addKnownPhotos(hashes);
+    }
+
+    @Override
+    public boolean expectsAcknowledgments() {
+        return true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        outStream.flush();
+    }
+
+    @Override
+    public void close() {
+        try {
+            outStream.close();
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryEncoder[" + compressor + "]";
+    }
+}
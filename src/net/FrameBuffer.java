@@ -0,0 +1,225 @@
+package net;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Growable byte buffer used for building and parsing binary frame payloads. A single instance is reused for every
+ * frame on a connection, so encoding and decoding do not allocate intermediate arrays.
+ * </p>
+ * <p>
+ * Integers are written as unsigned LEB128 varints, strings as UTF-8 bytes prefixed with (length + 1) so that null can
+ * be represented as 0. Byte arrays use the same nullable length prefix.
+ * </p>
+ */
+class FrameBuffer {
+    private byte[] data;
+    private int size;
+    private int position;
+
+    FrameBuffer(int initialCapacity) {
+        data = new byte[initialCapacity];
+    }
+
+    /**
+     * <p>
+     * Clears buffer contents, keeping allocated memory for reuse.
+     * </p>
+     */
+    void reset() {
+        size = 0;
+        position = 0;
+    }
+
+    /**
+     * <p>
+     * Makes sure that at least length bytes can be stored and marks them as buffer contents for reading.
+     * </p>
+     *
+     * @param length - number of bytes that will be read into array returned by array()
+     */
+    void prepareForRead(int length) {
+        reset();
+        ensureCapacity(length);
+        size = length;
+    }
+
+    byte[] array() {
+        return data;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int remaining() {
+        return size - position;
+    }
+
+    int position() {
+        return position;
+    }
+
+    /**
+     * <p>
+     * Makes sure that at least length more bytes can be written directly into array returned by array(), starting at
+     * size(). Call advance() after writing them.
+     * </p>
+     *
+     * @param length - number of bytes to reserve
+     */
+    void reserve(int length) {
+        ensureCapacity(size + length);
+    }
+
+    /**
+     * <p>
+     * Marks bytes written directly into the array as buffer contents.
+     * </p>
+     *
+     * @param length - number of written bytes
+     */
+    void advance(int length) {
+        size += length;
+    }
+
+    void writeByte(int value) {
+        ensureCapacity(size + 1);
+        data[size++] = (byte) value;
+    }
+
+    void writeVarLong(long value) {
+        ensureCapacity(size + 10);
+        while ((value & ~0x7FL) != 0) {
+            data[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[size++] = (byte) value;
+    }
+
+    void writeVarInt(int value) {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes value as 8 bytes, for hashes and other values that do not fit a varint well.
+     */
+    void writeLong(long value) {
+        ensureCapacity(size + 8);
+        for (int shift = 56; shift >= 0; shift -= 8) data[size++] = (byte) (value >>> shift);
+    }
+
+    void writeBytes(byte[] bytes) {
+        if (bytes == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(bytes.length + 1);
+        writeRaw(bytes, 0, bytes.length);
+    }
+
+    void writeRaw(byte[] bytes, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(bytes, offset, data, size, length);
+        size += length;
+    }
+
+    void writeString(String text) {
+        if (text == null) {
+            writeVarInt(0);
+            return;
+        }
+        int length = utf8Length(text);
+        writeVarInt(length + 1);
+        ensureCapacity(size + length);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                data[size++] = (byte) c;
+            } else if (c < 0x800) {
+                data[size++] = (byte) (0xC0 | (c >> 6));
+                data[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                data[size++] = (byte) (0xF0 | (codePoint >> 18));
+                data[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                data[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                data[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                data[size++] = (byte) (0xE0 | (c >> 12));
+                data[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                data[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    int readByte() throws IOException {
+        if (position >= size) throw new IOException("Unexpected end of frame");
+        return data[position++] & 0xFF;
+    }
+
+    long readVarLong() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    long readLong() throws IOException {
+        checkRemaining(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) value = (value << 8) | (data[position++] & 0xFF);
+        return value;
+    }
+
+    int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) throw new IOException("Varint out of range: " + value);
+        return (int) value;
+    }
+
+    byte[] readBytes() throws IOException {
+        int length = readVarInt() - 1;
+        if (length < 0) return null;
+        checkRemaining(length);
+        byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+        position += length;
+        return bytes;
+    }
+
+    String readString() throws IOException {
+        int length = readVarInt() - 1;
+        if (length < 0) return null;
+        checkRemaining(length);
+        String text = new String(data, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return text;
+    }
+
+    private void checkRemaining(int length) throws IOException {
+        if (length > remaining()) throw new IOException("Field length " + length + " exceeds frame size");
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+    }
+
+    private static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) length += 1;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else length += 3;
+        }
+        return length;
+    }
+}
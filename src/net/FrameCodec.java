@@ -0,0 +1,305 @@
+package net;
+
+import engine.PhotoStore;
+import engine.Watermark;
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Message;
+import informer_api.conversation.Person;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Translates between conversation objects and payloads of binary protocol frames.
+ * </p>
+ * <p>
+ * Every frame on the wire is laid out as: frame type (1 byte), payload length (varint) and payload. Connection starts
+ * with a MAGIC header followed by protocol VERSION, see Handshake class for details. Since version 2 the highest bit
+ * of frame type marks compressed payload, see FrameCompressor. Since version 3 server starts a session that the phone
+ * resumes after reconnecting, see SessionStart and SessionResume.
+ * </p>
+ * <p>
+ * Since version 4 photo of a person is preceded by its kind: none, inline bytes or a reference to a photo the PC
+ * already holds (hash, see PhotoStore). Server tells the phone hashes of held photos with PhotoDigests, and encoder
+ * also remembers photos it sent inline on the connection, so every photo crosses the wire at most once. Inline photos
+ * are interned in PhotoStore as soon as they are decoded.
+ * </p>
+ */
+class FrameCodec {
+    static final byte[] MAGIC = {'I', 'N', 'F', 'O'};
+    static final int VERSION = 4;
+    /**
+     * First protocol version in which frames may be compressed, see FrameCompressor.
+     */
+    static final int COMPRESSION_VERSION = 2;
+    /**
+     * First protocol version with session resumption.
+     */
+    static final int SESSION_VERSION = 3;
+    /**
+     * First protocol version in which photos are sent by reference, see PhotoDigests.
+     */
+    static final int PHOTO_VERSION = 4;
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    static final int MESSAGE = 1;
+    static final int CONVERSATION = 2;
+    static final int DATABASE = 3;
+    static final int SYNC_REQUEST = 4;
+    static final int SYNC_DELTA = 5;
+    static final int SYNC_COMPLETE = 6;
+    static final int SEND = 7;
+    static final int ACK = 8;
+    static final int SESSION_START = 9;
+    static final int SESSION_RESUME = 10;
+    static final int PHOTO_DIGESTS = 11;
+
+    private static final int FLAG_SENT_BY_OWNER = 1;
+    private static final int FLAG_HAS_NUMBER = 2;
+    private static final int NO_PHOTO = 0;
+    private static final int INLINE_PHOTO = 1;
+    private static final int PHOTO_REFERENCE = 2;
+
+    private final int version;
+    private final PhotoStore photos;
+    private final Set<Long> knownPhotos = ConcurrentHashMap.newKeySet();
+    private int photoBytes;
+
+    /**
+     * @param version - negotiated protocol version
+     * @param photos  - store interning decoded photos and resolving references, null if no person is decoded
+     */
+    FrameCodec(int version, PhotoStore photos) {
+        this.version = version;
+        this.photos = photos;
+    }
+
+    /**
+     * <p>
+     * Remembers photos held by the other side, which are encoded as references from now on.
+     * </p>
+     *
+     * @param hashes - hashes of held photos, see PhotoStore
+     */
+    void addKnownPhotos(long[] hashes) {
+        for (long hash : hashes) knownPhotos.add(hash);
+    }
+
+    /**
+     * <p>
+     * Writes payload of the provided object into the buffer.
+     * </p>
+     *
+     * @param object  - object to encode
+     * @param payload - cleared buffer for payload bytes
+     * @return frame type matching the object
+     * @throws IOException - if object type is not supported by the protocol
+     */
+    int encode(Object object, FrameBuffer payload) throws IOException {
+        photoBytes = 0;
+        if (object instanceof Message) {
+            writeMessage((Message) object, payload);
+            return MESSAGE;
+        } else if (object instanceof Conversation) {
+            writeConversation((Conversation) object, payload);
+            return CONVERSATION;
+        } else if (object instanceof Map) {
+            Map<?, ?> conversations = (Map<?, ?>) object;
+            payload.writeVarInt(conversations.size());
+            for (Object c : conversations.values()) {
+                if (!(c instanceof Conversation))
+                    throw new IOException("Unsupported database entry " + (c == null ? null : c.getClass().getName()));
+                writeConversation((Conversation) c, payload);
+            }
+            return DATABASE;
+        } else if (object instanceof SyncRequest) {
+            writeSyncRequest((SyncRequest) object, payload);
+            return SYNC_REQUEST;
+        } else if (object instanceof SyncDelta) {
+            writeConversation(((SyncDelta) object).getConversation(), payload);
+            return SYNC_DELTA;
+        } else if (object instanceof SyncComplete) {
+            return SYNC_COMPLETE;
+        } else if (object instanceof OutboundMessage) {
+            payload.writeVarLong(((OutboundMessage) object).getId());
+            writeMessage(((OutboundMessage) object).getMessage(), payload);
+            return SEND;
+        } else if (object instanceof Acknowledgment) {
+            payload.writeVarLong(((Acknowledgment) object).getId());
+            return ACK;
+        } else if (object instanceof SessionStart) {
+            payload.writeVarLong(((SessionStart) object).getToken());
+            return SESSION_START;
+        } else if (object instanceof SessionResume) {
+            payload.writeVarLong(((SessionResume) object).getToken());
+            payload.writeVarLong(((SessionResume) object).getLastReceivedId());
+            return SESSION_RESUME;
+        } else if (object instanceof PhotoDigests) {
+            long[] hashes = ((PhotoDigests) object).getHashes();
+            payload.writeVarInt(hashes.length);
+            for (long hash : hashes) payload.writeLong(hash);
+            return PHOTO_DIGESTS;
+        }
+        throw new IOException("Unsupported object type " + (object == null ? null : object.getClass().getName()));
+    }
+
+    /**
+     * <p>
+     * Returns number of payload bytes taken by contact photos in the last encoded object. Photos are already
+     * compressed images, so payloads consisting mostly of them are not worth compressing again.
+     * </p>
+     *
+     * @return number of photo bytes
+     */
+    int getPhotoBytes() {
+        return photoBytes;
+    }
+
+    /**
+     * <p>
+     * Reads object from the frame payload.
+     * </p>
+     *
+     * @param type    - frame type
+     * @param payload - buffer holding whole payload
+     * @return decoded object or null for unknown frame types (those are skipped for forward compatibility)
+     * @throws IOException - if payload is malformed
+     */
+    Object decode(int type, FrameBuffer payload) throws IOException {
+        switch (type) {
+            case MESSAGE:
+                return readMessage(payload);
+            case CONVERSATION:
+                return readConversation(payload);
+            case DATABASE:
+                int count = payload.readVarInt();
+                Map<Person, Conversation> conversations = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+                for (int i = 0; i < count; i++) {
+                    Conversation conversation = readConversation(payload);
+                    conversations.put(conversation.getPerson(), conversation);
+                }
+                return conversations;
+            case SYNC_REQUEST:
+                return readSyncRequest(payload);
+            case SYNC_DELTA:
+                return new SyncDelta(readConversation(payload));
+            case SYNC_COMPLETE:
+                return SyncComplete.INSTANCE;
+            case SEND:
+                long id = payload.readVarLong();
+                return new OutboundMessage(id, readMessage(payload));
+            case ACK:
+                return new Acknowledgment(payload.readVarLong());
+            case SESSION_START:
+                return new SessionStart(payload.readVarLong());
+            case SESSION_RESUME:
+                long token = payload.readVarLong();
+                return new SessionResume(token, payload.readVarLong());
+            case PHOTO_DIGESTS:
+                long[] hashes = new long[payload.readVarInt()];
+                for (int i = 0; i < hashes.length; i++) hashes[i] = payload.readLong();
+                return new PhotoDigests(hashes);
+            default:
+                return null;
+        }
+    }
+
+    private void writeMessage(Message message, FrameBuffer payload) {
+        int flags = (message.isSentByOwner() ? FLAG_SENT_BY_OWNER : 0) | (message.getNumber() != null ? FLAG_HAS_NUMBER : 0);
+        payload.writeByte(flags);
+        if (message.getNumber() != null) payload.writeString(message.getNumber());
+        payload.writeString(message.getDate());
+        payload.writeString(message.getText());
+    }
+
+    private Message readMessage(FrameBuffer payload) throws IOException {
+        int flags = payload.readByte();
+        String number = (flags & FLAG_HAS_NUMBER) != 0 ? payload.readString() : null;
+        String date = payload.readString();
+        String text = payload.readString();
+        return number != null ? new Message(number, text) : new Message((flags & FLAG_SENT_BY_OWNER) != 0, date, text);
+    }
+
+    private void writePerson(Person person, FrameBuffer payload) {
+        payload.writeString(person.getNickname());
+        payload.writeString(person.getNumber());
+        byte[] photo = person.getPhoto();
+        if (version < PHOTO_VERSION) {
+            payload.writeBytes(photo);
+            if (photo != null) photoBytes += photo.length;
+            return;
+        }
+        if (photo == null) {
+            payload.writeByte(NO_PHOTO);
+            return;
+        }
+        long hash = PhotoStore.hashOf(photo);
+        if (knownPhotos.contains(hash)) {
+            payload.writeByte(PHOTO_REFERENCE);
+            payload.writeLong(hash);
+        } else {
+            payload.writeByte(INLINE_PHOTO);
+            payload.writeBytes(photo);
+            photoBytes += photo.length;
+            // Frames are decoded in order, so later references to the photo are resolved
+            knownPhotos.add(hash);
+        }
+    }
+
+    private Person readPerson(FrameBuffer payload) throws IOException {
+        String nickname = payload.readString();
+        String number = payload.readString();
+        if (version < PHOTO_VERSION) return new Person(nickname, number, intern(payload.readBytes()));
+        int kind = payload.readByte();
+        if (kind == NO_PHOTO) return new Person(nickname, number, null);
+        if (kind == INLINE_PHOTO) return new Person(nickname, number, intern(payload.readBytes()));
+        if (kind != PHOTO_REFERENCE) throw new IOException("Unknown photo kind " + kind);
+        long hash = payload.readLong();
+        byte[] photo = photos == null ? null : photos.get(hash);
+        if (photo == null) throw new IOException("Reference to unknown photo " + Long.toHexString(hash));
+        return new Person(nickname, number, photo);
+    }
+
+    private byte[] intern(byte[] photo) {
+        return photos == null ? photo : photos.intern(photo);
+    }
+
+    private void writeConversation(Conversation conversation, FrameBuffer payload) {
+        writePerson(conversation.getPerson(), payload);
+        List<Message> messages = conversation.getMessages();
+        payload.writeVarInt(messages.size());
+        for (Message m : messages) writeMessage(m, payload);
+    }
+
+    private Conversation readConversation(FrameBuffer payload) throws IOException {
+        Conversation conversation = new Conversation(readPerson(payload));
+        int count = payload.readVarInt();
+        for (int i = 0; i < count; i++) conversation.addMessage(readMessage(payload));
+        return conversation;
+    }
+
+    private void writeSyncRequest(SyncRequest request, FrameBuffer payload) {
+        payload.writeVarInt(request.getWatermarks().size());
+        for (Map.Entry<String, Watermark> entry : request.getWatermarks().entrySet()) {
+            payload.writeString(entry.getKey());
+            payload.writeVarInt(entry.getValue().getMessageCount());
+            payload.writeString(entry.getValue().getLastMessageDate());
+        }
+    }
+
+    private SyncRequest readSyncRequest(FrameBuffer payload) throws IOException {
+        int count = payload.readVarInt();
+        Map<String, Watermark> watermarks = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+        for (int i = 0; i < count; i++) {
+            String number = payload.readString();
+            int messageCount = payload.readVarInt();
+            watermarks.put(number, new Watermark(messageCount, payload.readString()));
+        }
+        return new SyncRequest(watermarks);
+    }
+}
@@ -0,0 +1,155 @@
+package net;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * Compresses and decompresses payloads of binary protocol frames.
+ * </p>
+ * <p>
+ * Compression is available since protocol version FrameCodec.COMPRESSION_VERSION. Compressed frame has
+ * COMPRESSED_FLAG set in its type byte and its payload holds uncompressed length (varint) followed by raw deflate
+ * data. Every frame is compressed separately, so frames can still be decoded one by one. Sender decides per frame:
+ * small frames, frames consisting mostly of photos (which are already compressed) and frames that did not shrink
+ * enough are sent as they are.
+ * </p>
+ * <p>
+ * Deflater and Inflater are created lazily and reused for all frames of a connection, so no garbage is created per
+ * frame. Instance is not thread-safe, each direction of a connection should use its own one. Compression can be
+ * turned off with ENABLED_PROPERTY, compressed frames sent by the phone are accepted anyway.
+ * </p>
+ */
+class FrameCompressor {
+    /**
+     * System property turning compression of outgoing frames off when set to "false".
+     */
+    static final String ENABLED_PROPERTY = "informer.compression";
+    static final int COMPRESSED_FLAG = 0x80;
+    private static final int MIN_COMPRESSED_SIZE = 512;
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final boolean enabled;
+    private Deflater deflater;
+    private Inflater inflater;
+    private long rawBytes, wireBytes;
+    private long compressedFrames, bypassedFrames;
+    private long nanosSpent;
+
+    /**
+     * @param negotiatedVersion - protocol version agreed during handshake
+     */
+    FrameCompressor(int negotiatedVersion) {
+        enabled = negotiatedVersion >= FrameCodec.COMPRESSION_VERSION
+                && !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+    }
+
+    /**
+     * <p>
+     * Compresses payload if it is worth it.
+     * </p>
+     *
+     * @param payload    - encoded frame payload
+     * @param photoBytes - number of payload bytes taken by photos
+     * @param compressed - buffer for compressed payload, cleared by this method
+     * @return true if payload was compressed into the provided buffer, false if it should be sent as it is
+     */
+    boolean compress(FrameBuffer payload, int photoBytes, FrameBuffer compressed) {
+        int size = payload.size();
+        rawBytes += size;
+        if (!enabled || size < MIN_COMPRESSED_SIZE || photoBytes * 2 > size) {
+            bypass(size);
+            return false;
+        }
+
+        long start = System.nanoTime();
+        if (deflater == null) deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.reset();
+        deflater.setInput(payload.array(), 0, size);
+        deflater.finish();
+        compressed.reset();
+        compressed.writeVarInt(size);
+        // Compression that does not save at least 10% is not worth the CPU time of the phone
+        int limit = size - size / 10;
+        while (!deflater.finished() && compressed.size() < limit) {
+            compressed.reserve(CHUNK_SIZE);
+            int written = deflater.deflate(compressed.array(), compressed.size(), compressed.array().length - compressed.size());
+            compressed.advance(written);
+        }
+        nanosSpent += System.nanoTime() - start;
+        if (!deflater.finished() || compressed.size() >= limit) {
+            bypass(size);
+            return false;
+        }
+        compressedFrames++;
+        wireBytes += compressed.size();
+        return true;
+    }
+
+    /**
+     * <p>
+     * Decompresses payload of a frame with COMPRESSED_FLAG set.
+     * </p>
+     *
+     * @param compressed - compressed payload
+     * @param payload    - buffer for original payload, cleared by this method
+     * @throws IOException - if compressed data is malformed
+     */
+    void decompress(FrameBuffer compressed, FrameBuffer payload) throws IOException {
+        int size = compressed.readVarInt();
+        if (size > FrameCodec.MAX_FRAME_SIZE) throw new IOException("Frame size " + size + " exceeds limit");
+
+        long start = System.nanoTime();
+        if (inflater == null) inflater = new Inflater(true);
+        inflater.reset();
+        inflater.setInput(compressed.array(), compressed.position(), compressed.remaining());
+        payload.prepareForRead(size);
+        int filled = 0;
+        try {
+            while (filled < size) {
+                int read = inflater.inflate(payload.array(), filled, size - filled);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Compressed frame is shorter than declared size " + size);
+                filled += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed frame: " + e.getMessage());
+        }
+        nanosSpent += System.nanoTime() - start;
+        rawBytes += size;
+        wireBytes += compressed.size();
+        compressedFrames++;
+    }
+
+    /**
+     * <p>
+     * Records frame received without compression, so that it is included in the ratio.
+     * </p>
+     *
+     * @param size - payload size
+     */
+    void recordPlainFrame(int size) {
+        rawBytes += size;
+        bypass(size);
+    }
+
+    /**
+     * @return ratio of original to transmitted payload bytes
+     */
+    double getRatio() {
+        return wireBytes == 0 ? 1 : (double) rawBytes / wireBytes;
+    }
+
+    private void bypass(int size) {
+        bypassedFrames++;
+        wireBytes += size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FrameCompressor[enabled=%b, raw=%d B, wire=%d B, ratio=%.2f, compressed=%d, bypassed=%d, cpu=%.1fms]",
+                enabled, rawBytes, wireBytes, getRatio(), compressedFrames, bypassedFrames, nanosSpent / 1e6);
+    }
+}
@@ -0,0 +1,110 @@
+package net;
+
+import engine.MainEngine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Picks wire protocol for freshly accepted connection.
+ * </p>
+ * <p>
+ * Server always starts by sending Java serialization stream header, exactly like it did before binary protocol
+ * existed, so older phones can construct their ObjectInputStream without waiting. Then the first bytes sent by the
+ * phone decide: serialization header (0xACED) keeps Java serialization, while FrameCodec.MAGIC followed by protocol
+ * version switches both directions to binary frames. In that case server answers with MAGIC and the agreed version
+ * and the phone is expected to skip the serialization header it received earlier. Version 2 and newer allow
+ * compressed frames, see FrameCompressor. Version 3 and newer allow resuming the session after reconnecting, see
+ * SessionStart. Version 4 and newer send photos the PC already holds as references, see PhotoDigests.
+ * </p>
+ * <p>
+ * Server waits for the first bytes as long as it takes, unless MainEngine.HANDSHAKE_TIMEOUT_PROPERTY is set.
+ * </p>
+ */
+class Handshake {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS =
+            (int) TimeUnit.SECONDS.toMillis(Long.getLong(MainEngine.HANDSHAKE_TIMEOUT_PROPERTY, 0));
+    private final Socket connection;
+    private WireProtocol protocol;
+    private int version;
+    private MessageEncoder encoder;
+    private MessageDecoder decoder;
+
+    Handshake(Socket connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * <p>
+     * Performs handshake and creates encoder and decoder for the picked protocol.
+     * </p>
+     *
+     * @throws IOException - if connection broke or phone sent unknown header
+     */
+    void perform() throws IOException {
+        OutputStream outStream = new BufferedOutputStream(new MeteredOutputStream(connection.getOutputStream()), BUFFER_SIZE);
+        ObjectOutputStream serializationStream = new ObjectOutputStream(outStream);
+        serializationStream.flush();
+
+        connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        BufferedInputStream inStream = new BufferedInputStream(new MeteredInputStream(connection.getInputStream()), BUFFER_SIZE);
+        inStream.mark(FrameCodec.MAGIC.length);
+        byte[] header = new byte[FrameCodec.MAGIC.length];
+        readFully(inStream, header);
+
+        if (header[0] == (byte) 0xAC && header[1] == (byte) 0xED) {
+            inStream.reset();
+            protocol = WireProtocol.SERIALIZATION;
+            encoder = new SerializationEncoder(serializationStream);
+            decoder = new SerializationDecoder(inStream);
+        } else if (Arrays.equals(header, FrameCodec.MAGIC)) {
+            int phoneVersion = inStream.read();
+            if (phoneVersion < 1) throw new IOException("Unsupported binary protocol version " + phoneVersion);
+            version = Math.min(phoneVersion, FrameCodec.VERSION);
+            outStream.write(FrameCodec.MAGIC);
+            outStream.write(version);
+            outStream.flush();
+            protocol = WireProtocol.BINARY;
+            encoder = new BinaryEncoder(outStream, version);
+            decoder = new BinaryDecoder(inStream, version, MainEngine.getInstance().getPhotoStore());
+        } else {
+            throw new IOException("Unknown protocol header " + Arrays.toString(header));
+        }
+        connection.setSoTimeout(0);
+        System.out.println("Handshake: phone uses " + protocol + " protocol");
+    }
+
+    WireProtocol getProtocol() {
+        return protocol;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    MessageEncoder getEncoder() {
+        return encoder;
+    }
+
+    MessageDecoder getDecoder() {
+        return decoder;
+    }
+
+    private static void readFully(BufferedInputStream stream, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = stream.read(buffer, offset, buffer.length - offset);
+            if (read < 0) throw new EOFException("Connection closed during handshake");
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package net;
+
+import com.sun.org.apache.xml.internal.security.signature.ReferenceNotInitializedException;
+import engine.MainEngine;
+import engine.Metrics;
+import informer_api.conversation.Conversation;
+import informer_api.conversation.Person;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * Passes objects received from the phone to the engine. Shared by every transport implementation.
+ * </p>
+ */
+class InboundDispatcher {
+    /**
+     * <p>
+     * Reacts to the object received from the phone.
+     * </p>
+     *
+     * @param object        - decoded object, null values are ignored
+     * @param outboundQueue - queue of messages sent by this connection, informed about acknowledgments
+     */
+    static void dispatch(Object object, OutboundQueue outboundQueue) {
+        if (object == null) return;
+        Metrics.FRAMES_IN.increment();
+        if (object instanceof Acknowledgment) outboundQueue.acknowledge(((Acknowledgment) object).getId());
+        else if (object instanceof Map) newDatabaseInstance((Map<Person, Conversation>) object);
+        else if (object instanceof Conversation) synchronizeNewMessages((Conversation) object);
+        else if (object instanceof SyncDelta) synchronizeDelta(((SyncDelta) object).getConversation());
+        else if (object instanceof SyncComplete) finishSynchronization();
+        else if (object instanceof SessionResume) resumeSession((SessionResume) object, outboundQueue);
+    }
+
+    private static void resumeSession(SessionResume resume, OutboundQueue outboundQueue) {
+        int delivered = outboundQueue.resume(resume.getToken(), resume.getLastReceivedId());
+        if (delivered < 0) System.out.println("InboundDispatcher: phone presented unknown session, unacknowledged messages are sent again");
+        else System.out.println("InboundDispatcher: session resumed, " + delivered + " messages already delivered");
+    }
+
+    private static void newDatabaseInstance(Map<Person, Conversation> conversations) {
+        for (Conversation conversation : conversations.values())
+            Metrics.MESSAGES_IN.add(conversation.getMessages().size());
+        try {
+            MainEngine.getInstance().synchronizeDatabase(conversations);
+        } catch (ReferenceNotInitializedException e) {
+            System.err.println("Message receiver could not synchronize database. Error: " + e.getMessage());
+        }
+    }
+
+    private static void synchronizeNewMessages(Conversation newMessages) {
+        Metrics.MESSAGES_IN.add(newMessages.getMessages().size());
+        try {
+            MainEngine.getInstance().synchronizeNewMessages(newMessages);
+        } catch (ReferenceNotInitializedException e) {
+        }
+    }
+
+    private static void synchronizeDelta(Conversation delta) {
+        Metrics.MESSAGES_IN.add(delta.getMessages().size());
+        MainEngine.getInstance().synchronizeDelta(delta);
+    }
+
+    private static void finishSynchronization() {
+        try {
+            MainEngine.getInstance().finishSynchronization();
+        } catch (ReferenceNotInitializedException e) {
+            System.err.println("Message receiver could not finish synchronization. Error: " + e.getMessage());
+        }
+    }
+
+    private InboundDispatcher() {
+    }
+}
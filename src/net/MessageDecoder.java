@@ -0,0 +1,27 @@
+package net;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Reads objects sent by the phone from the underlying connection using a chosen wire protocol.
+ * </p>
+ */
+interface MessageDecoder {
+    /**
+     * <p>
+     * Blocks until next object is received.
+     * </p>
+     *
+     * @return received object or null if it could not be recognized
+     * @throws IOException - if connection is broken or data is malformed
+     */
+    Object read() throws IOException;
+
+    /**
+     * <p>
+     * Closes underlying stream, which unblocks any pending read() call.
+     * </p>
+     */
+    void close();
+}
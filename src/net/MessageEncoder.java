@@ -0,0 +1,45 @@
+package net;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Writes objects exchanged with the phone to the underlying connection using a chosen wire protocol.
+ * </p>
+ */
+interface MessageEncoder {
+    /**
+     * <p>
+     * Encodes object into the output buffer. Data is not guaranteed to reach the phone before flush() is called.
+     * </p>
+     *
+     * @param object - outbound message, conversation or full database map
+     * @throws IOException - if object could not be written
+     */
+    void write(Object object) throws IOException;
+
+    /**
+     * <p>
+     * Returns whether phone acknowledges messages written by this encoder.
+     * </p>
+     *
+     * @return true if acknowledgments are sent back
+     */
+    boolean expectsAcknowledgments();
+
+    /**
+     * <p>
+     * Pushes all buffered data to the phone.
+     * </p>
+     *
+     * @throws IOException - if connection is broken
+     */
+    void flush() throws IOException;
+
+    /**
+     * <p>
+     * Closes underlying stream.
+     * </p>
+     */
+    void close();
+}
@@ -1,28 +1,32 @@
 package net;
 
-import com.sun.org.apache.xml.internal.security.signature.ReferenceNotInitializedException;
-import engine.MainEngine;
-import informer_api.conversation.Conversation;
-import informer_api.conversation.Message;
-import informer_api.conversation.Person;
-
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.Socket;
-import java.util.Map;
 
 /**
  * <p>
  * MessageReceiver class is responsible for receiving objects from connected phone.
  * </p>
+ * <p>
+ * When the connection breaks, the transport is informed through the provided callback, so it can wait for the phone
+ * to reconnect.
+ * </p>
  * Created by Piotr Waszkiewicz on 31.01.17.
  */
 class MessageReceiver extends Thread {
-    ObjectInputStream inStream;
-    private boolean shouldWork;
-
-    MessageReceiver(Socket connection) throws IOException {
-        inStream = new ObjectInputStream(connection.getInputStream());
+    private MessageDecoder decoder;
+    private OutboundQueue outboundQueue;
+    private final Runnable onBroken;
+    private volatile boolean shouldWork;
+
+    /**
+     * @param decoder       - decoder reading from the connection
+     * @param outboundQueue - queue informed about acknowledgments
+     * @param onBroken      - invoked once if the connection breaks, but not after cancel
+     */
+    MessageReceiver(MessageDecoder decoder, OutboundQueue outboundQueue, Runnable onBroken) {
+        this.decoder = decoder;
+        this.outboundQueue = outboundQueue;
+        this.onBroken = onBroken;
         shouldWork = true;
     }
 
@@ -30,51 +34,21 @@ class MessageReceiver extends Thread {
     public void run() {
         while (shouldWork) {
             try {
-                reactToReceivedObject(inStream.readObject());
+                InboundDispatcher.dispatch(decoder.read(), outboundQueue);
             } catch (IOException e) {
-                // TODO: Broken connection should result in stopping whole service?
                 System.err.println("MessageReceiver: " + e.getMessage());
-                if (shouldWork) restartServer();
-            } catch (ClassNotFoundException e) {
+                if (shouldWork) {
+                    // Stream is unusable after an error, so this receiver is done
+                    shouldWork = false;
+                    onBroken.run();
+                }
             }
         }
-        System.out.println("MessageReceiver stopping work");
+        System.out.println("MessageReceiver stopping work, " + decoder);
     }
 
     void cancel() {
-        try {
-            shouldWork = false;
-            inStream.close();
-        } catch (IOException e) {
-        }
-    }
-
-    private void reactToReceivedObject(Object object) {
-        if (object == null) return;
-        if (object instanceof Map) newDatabaseInstance((Map<Person, Conversation>) object);
-        else if (object instanceof Conversation) synchronizeNewMessages((Conversation) object);
-    }
-
-    private void newDatabaseInstance(Map<Person, Conversation> conversations) {
-        try {
-            MainEngine.getInstance().synchronizeDatabase(conversations);
-        } catch (ReferenceNotInitializedException e) {
-            System.err.println("Message receiver could not synchronize database. Error: " + e.getMessage());
-        }
-    }
-
-    private void synchronizeNewMessages(Conversation newMessages) {
-        try {
-            MainEngine.getInstance().synchronizeNewMessages(newMessages);
-        } catch (ReferenceNotInitializedException e) {
-        }
-    }
-
-    private void restartServer() {
-        try {
-            MainEngine.getInstance().changeConnectionState(false);
-            MainEngine.getInstance().stopAllWork(true);
-        } catch (ReferenceNotInitializedException e) {
-        }
+        shouldWork = false;
+        decoder.close();
     }
 }
@@ -1,60 +1,59 @@
 package net;
 
-import informer_api.conversation.Message;
+import engine.Metrics;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
 
 /**
  * <p>
  * Class used in sending messages via phone.
+ * Messages are taken from the shared OutboundQueue in batches, and every batch is written and flushed at once.
  * </p>
  * Created by waszka on 30.01.17.
  */
 class MessageSender extends Thread {
-    private ObjectOutputStream outStream;
-    private boolean shouldWork;
-    private final ConcurrentLinkedQueue<Message> messagesToSend;
-
-    MessageSender(Socket connection) throws IOException {
-        outStream = new ObjectOutputStream(connection.getOutputStream());
-        messagesToSend = new ConcurrentLinkedQueue<>();
+    private static final int BATCH_SIZE = 64;
+    private final MessageEncoder encoder;
+    private final OutboundQueue messagesToSend;
+    private volatile boolean shouldWork;
+
+    MessageSender(MessageEncoder encoder, OutboundQueue messagesToSend) {
+        this.encoder = encoder;
+        this.messagesToSend = messagesToSend;
         shouldWork = true;
     }
 
     @Override
     public void run() {
-        synchronized (messagesToSend) {
-            while (shouldWork) {
-                waitForMessagesToSend();
-            }
+        while (shouldWork) {
+            waitForMessagesToSend();
         }
-        System.out.println("MessageSender stopping work");
+        System.out.println("MessageSender stopping work, " + encoder);
     }
 
     void cancel() {
-        synchronized (messagesToSend) {
-            shouldWork = false;
-            messagesToSend.notify();
-        }
-    }
-
-    void sendMessage(Message message) {
-        synchronized (messagesToSend) {
-            messagesToSend.add(message);
-            messagesToSend.notify();
-        }
+        shouldWork = false;
+        interrupt();
     }
 
     private void waitForMessagesToSend() {
+        List<OutboundMessage> batch;
+        try {
+            batch = messagesToSend.takeBatch(BATCH_SIZE);
+        } catch (InterruptedException e) {
+            return;
+        }
         try {
-            if (messagesToSend.isEmpty()) messagesToSend.wait();
-            for (Message m : messagesToSend) outStream.writeObject(m);
-        } catch (InterruptedException | IOException e) {
-        } finally {
-            messagesToSend.clear();
+            for (OutboundMessage m : batch) encoder.write(m);
+            encoder.flush();
+            Metrics.MESSAGES_OUT.add(batch.size());
+            if (!encoder.expectsAcknowledgments()) messagesToSend.markDelivered(batch);
+        } catch (IOException e) {
+            // Connection is broken, receiver will notice it as well and restart the server
+            System.err.println("MessageSender: " + e.getMessage());
+            messagesToSend.returnUnsent(batch);
+            shouldWork = false;
         }
     }
 }
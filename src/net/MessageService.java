@@ -12,31 +12,36 @@ import java.net.Socket;
  * <p>
  * Service used to retrieve and send information to connected phone.
  * </p>
+ * <p>
+ * Listening socket stays open for the whole life of the service. When the connection breaks, the engine is informed
+ * and the service accepts the next connection on the same socket, so a phone that lost its network for a moment
+ * reconnects without the port being bound again. Phones using binary protocol version 3 and newer resume the session,
+ * see SessionStart.
+ * </p>
  * Created by Piotr Waszkiewicz on 30.01.17.
  */
-public class MessageService extends Thread {
+public class MessageService extends Thread implements PhoneLink {
     private boolean shouldWork;
+    private boolean connectionBroken;
     private ServerSocket listener;
+    private Socket connection;
     private MessageSender messageSender;
     private MessageReceiver messageReceiver;
+    private final OutboundQueue outboundQueue;
     private Object lock = new Object();
 
-    public MessageService(int port) throws IOException {
+    public MessageService(int port, OutboundQueue outboundQueue) throws IOException {
+        this.outboundQueue = outboundQueue;
         shouldWork = true;
         listener = new ServerSocket(port);
     }
 
-    /**
-     * <p>
-     * Cancels work, stops all threads and exits.
-     * </p>
-     */
+    @Override
     public void cancel() {
         synchronized (lock) {
             shouldWork = false;
             lock.notify();
-            if (messageReceiver != null) messageReceiver.cancel();
-            if (messageSender != null) messageSender.cancel();
+            closeConnection();
             try {
                 listener.close();
             } catch (IOException e) {
@@ -44,39 +49,119 @@ public class MessageService extends Thread {
         }
     }
 
+    @Override
+    public boolean sendMessage(Message message) {
+        return outboundQueue.offer(message);
+    }
+
+    @Override
+    public void run() {
+        while (isWorking()) {
+            if (!serveConnection()) continue;
+
+            synchronized (lock) {
+                while (shouldWork && !connectionBroken) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                if (!shouldWork) break;
+                closeConnection();
+            }
+            try {
+                MainEngine.getInstance().changeConnectionState(false);
+            } catch (ReferenceNotInitializedException e) {
+            }
+        }
+        System.out.println("MessageService stopping work, " + outboundQueue);
+    }
+
     /**
      * <p>
-     * Sends message to phone.
+     * Accepts connection, performs handshake and starts sender and receiver threads.
      * </p>
      *
-     * @param message - message to send
+     * @return false if no connection was established
      */
-    public void sendMessage(Message message) {
-        messageSender.sendMessage(message);
-    }
-
-    @Override
-    public void run() {
+    private boolean serveConnection() {
+        Socket accepted = null;
+        try {
+            accepted = listener.accept();
+            Handshake handshake = new Handshake(accepted);
+            handshake.perform();
+            if (handshake.getProtocol() == WireProtocol.BINARY) startSession(handshake);
+            synchronized (lock) {
+                if (!shouldWork) {
+                    accepted.close();
+                    return false;
+                }
+                connection = accepted;
+                connectionBroken = false;
+                outboundQueue.connectionStarted(handshake.getProtocol() == WireProtocol.BINARY &&
+                        handshake.getVersion() >= FrameCodec.SESSION_VERSION);
+                messageSender = new MessageSender(handshake.getEncoder(), outboundQueue);
+                messageReceiver = new MessageReceiver(handshake.getDecoder(), outboundQueue, this::connectionBroken);
+                messageSender.start();
+                messageReceiver.start();
+            }
+        } catch (IOException e) {
+            System.err.println("MessageService run: " + e.getMessage());
+            if (accepted != null) {
+                try {
+                    accepted.close();
+                } catch (IOException closeError) {
+                }
+            }
+            return false;
+        }
         try {
-            Socket connection = listener.accept();
-            messageSender = new MessageSender(connection);
-            messageReceiver = new MessageReceiver(connection);
-            messageSender.start();
-            messageReceiver.start();
             MainEngine.getInstance().changeConnectionState(true);
-        } catch (IOException | ReferenceNotInitializedException e) {
+        } catch (ReferenceNotInitializedException e) {
             System.err.println("MessageService run: " + e.getMessage());
         }
+        return true;
+    }
 
-        // Infinite loop
+    private void connectionBroken() {
         synchronized (lock) {
-            while (shouldWork) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException e) {
-                }
+            connectionBroken = true;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Stops threads of the current connection and puts messages it did not deliver back in the queue.
+     */
+    private void closeConnection() {
+        if (messageReceiver != null) messageReceiver.cancel();
+        if (messageSender != null) messageSender.cancel();
+        messageReceiver = null;
+        messageSender = null;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
             }
         }
-        System.out.println("MessageService stopping work");
+        connection = null;
+        outboundQueue.requeueInFlight();
+    }
+
+    private boolean isWorking() {
+        synchronized (lock) {
+            return shouldWork;
+        }
+    }
+
+    private void startSession(Handshake handshake) throws IOException {
+        MessageEncoder encoder = handshake.getEncoder();
+        if (handshake.getVersion() >= FrameCodec.SESSION_VERSION) encoder.write(new SessionStart(outboundQueue.getSessionToken()));
+        if (handshake.getVersion() >= FrameCodec.PHOTO_VERSION)
+            encoder.write(new PhotoDigests(MainEngine.getInstance().getPhotoStore().getHashes()));
+        SyncRequest request = new SyncRequest(MainEngine.getInstance().getSyncWatermarks());
+        System.out.println("Requesting synchronization of " + request.getWatermarks().size() + " conversations");
+        encoder.write(request);
+        encoder.flush();
     }
 }
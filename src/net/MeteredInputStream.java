@@ -0,0 +1,32 @@
+package net;
+
+import engine.Metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * Input stream counting bytes received from the phone in Metrics.BYTES_IN.
+ * </p>
+ */
+class MeteredInputStream extends FilterInputStream {
+    MeteredInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) Metrics.BYTES_IN.increment();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read > 0) Metrics.BYTES_IN.add(read);
+        return read;
+    }
+}
@@ -0,0 +1,33 @@
+package net;
+
+import engine.Metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Output stream counting bytes sent to the phone in Metrics.BYTES_OUT.
+ * </p>
+ */
+class MeteredOutputStream extends FilterOutputStream {
+    MeteredOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        Metrics.BYTES_OUT.increment();
+    }
+
+    /**
+     * Writes whole array at once, FilterOutputStream would write it byte by byte.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        out.write(buffer, offset, length);
+        Metrics.BYTES_OUT.add(length);
+    }
+}
@@ -0,0 +1,319 @@
+package net;
+
+import com.sun.org.apache.xml.internal.security.signature.ReferenceNotInitializedException;
+import engine.MainEngine;
+import engine.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * State of a single phone connection handled by NioMessageService event loop.
+ * </p>
+ * <p>
+ * Handshake is the same as in the Handshake class. Binary frames are assembled straight from a direct read buffer into
+ * a reusable payload buffer, so frames larger than the read buffer are supported without growing it. Phones using
+ * Java serialization cannot be framed without blocking, so such connections are handed off to regular MessageSender
+ * and MessageReceiver threads.
+ * </p>
+ */
+class NioConnection {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_OUTPUT = 4 * BUFFER_SIZE;
+    private static final byte[] SERIALIZATION_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+
+    private enum State {HANDSHAKE, BINARY, HANDING_OFF, HANDED_OFF}
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final OutboundQueue outboundQueue;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FrameCodec codec;
+    private final FrameBuffer inboundPayload = new FrameBuffer(4096);
+    private final FrameBuffer outboundPayload = new FrameBuffer(4096);
+    private final FrameBuffer inflatedPayload = new FrameBuffer(4096);
+    private final FrameBuffer deflatedPayload = new FrameBuffer(4096);
+    private FrameCompressor inboundCompressor, outboundCompressor;
+    private final FrameBuffer pendingOutput = new FrameBuffer(BUFFER_SIZE);
+    private int pendingOffset;
+    private State state = State.HANDSHAKE;
+    private int frameType = -1;
+    private int frameLength, frameFilled;
+    private byte[] handOffBytes;
+    private MessageSender fallbackSender;
+    private MessageReceiver fallbackReceiver;
+
+    NioConnection(SocketChannel channel, Selector selector, OutboundQueue outboundQueue) throws IOException {
+        this.channel = channel;
+        this.outboundQueue = outboundQueue;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        writeBuffer.flip();
+        pendingOutput.writeRaw(SERIALIZATION_HEADER, 0, SERIALIZATION_HEADER.length);
+        flushOutput();
+    }
+
+    /**
+     * <p>
+     * Returns whether event loop should pass queued messages to this connection. This is false before handshake
+     * completes, after connection was handed off to blocking threads and while socket is not keeping up with
+     * previously queued data.
+     * </p>
+     *
+     * @return true if connection accepts messages
+     */
+    boolean canTakeMessages() {
+        return state == State.BINARY && pendingOutput.size() - pendingOffset < MAX_PENDING_OUTPUT;
+    }
+
+    boolean isHandingOff() {
+        return state == State.HANDING_OFF;
+    }
+
+    /**
+     * <p>
+     * Encodes message into output buffer. Call flushOutput() to push buffered data to the socket.
+     * </p>
+     *
+     * @param message - message to send
+     * @throws IOException - if message could not be encoded
+     */
+    void send(OutboundMessage message) throws IOException {
+        enqueue(message);
+        Metrics.MESSAGES_OUT.increment();
+    }
+
+    /**
+     * <p>
+     * Reads available data and dispatches every complete frame.
+     * </p>
+     *
+     * @throws IOException - if connection is broken or phone sent malformed data
+     */
+    void read() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) throw new EOFException("Connection closed by phone");
+        Metrics.BYTES_IN.add(read);
+        readBuffer.flip();
+        if (state == State.HANDSHAKE) readHandshake();
+        while (state == State.BINARY && readFrame()) ;
+        if (state != State.HANDING_OFF) readBuffer.compact();
+    }
+
+    /**
+     * <p>
+     * Writes as much queued data as the socket accepts without blocking. Interest in OP_WRITE is kept only while some
+     * data is still waiting.
+     * </p>
+     *
+     * @throws IOException - if connection is broken
+     */
+    void flushOutput() throws IOException {
+        if (state == State.HANDED_OFF || !key.isValid()) return;
+        while (true) {
+            if (!writeBuffer.hasRemaining()) {
+                int available = pendingOutput.size() - pendingOffset;
+                if (available == 0) {
+                    pendingOutput.reset();
+                    pendingOffset = 0;
+                    break;
+                }
+                int chunk = Math.min(available, writeBuffer.capacity());
+                writeBuffer.clear();
+                writeBuffer.put(pendingOutput.array(), pendingOffset, chunk);
+                writeBuffer.flip();
+                pendingOffset += chunk;
+            }
+            Metrics.BYTES_OUT.add(channel.write(writeBuffer));
+            if (writeBuffer.hasRemaining()) break;
+        }
+        key.interestOps(writeBuffer.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * <p>
+     * Moves connection using Java serialization to blocking sender and receiver threads.
+     * Must be called from the event loop after all selected keys were processed.
+     * </p>
+     *
+     * @param selector - selector the connection was registered with
+     * @throws IOException - if connection could not be switched to blocking mode
+     */
+    void handOff(Selector selector) throws IOException {
+        key.cancel();
+        selector.selectNow();
+        channel.configureBlocking(true);
+        ByteBuffer remaining = ByteBuffer.wrap(pendingOutput.array(), pendingOffset, pendingOutput.size() - pendingOffset);
+        while (writeBuffer.hasRemaining()) Metrics.BYTES_OUT.add(channel.write(writeBuffer));
+        while (remaining.hasRemaining()) Metrics.BYTES_OUT.add(channel.write(remaining));
+
+        Socket socket = channel.socket();
+        OutputStream outStream = new BufferedOutputStream(new MeteredOutputStream(socket.getOutputStream()), BUFFER_SIZE);
+        fallbackSender = new MessageSender(new SerializationEncoder(new HeaderlessObjectOutputStream(outStream)), outboundQueue);
+        fallbackReceiver = new MessageReceiver(new SerializationDecoder(new BufferedInputStream(
+                new SequenceInputStream(new ByteArrayInputStream(handOffBytes), new MeteredInputStream(socket.getInputStream())), BUFFER_SIZE)),
+                outboundQueue, this::fallbackBroken);
+        handOffBytes = null;
+        state = State.HANDED_OFF;
+        outboundQueue.connectionStarted(false);
+        fallbackSender.start();
+        fallbackReceiver.start();
+        notifyConnected();
+    }
+
+    void close() {
+        if (outboundCompressor != null)
+            System.out.println("NioConnection closing, sent " + outboundCompressor + ", received " + inboundCompressor);
+        if (fallbackReceiver != null) fallbackReceiver.cancel();
+        if (fallbackSender != null) fallbackSender.cancel();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void readHandshake() throws IOException {
+        if (readBuffer.remaining() < FrameCodec.MAGIC.length) return;
+        int start = readBuffer.position();
+        if (readBuffer.get(start) == SERIALIZATION_HEADER[0] && readBuffer.get(start + 1) == SERIALIZATION_HEADER[1]) {
+            handOffBytes = new byte[readBuffer.remaining()];
+            readBuffer.get(handOffBytes);
+            state = State.HANDING_OFF;
+            System.out.println("NioConnection: phone uses " + WireProtocol.SERIALIZATION + " protocol, switching to blocking threads");
+            return;
+        }
+        if (readBuffer.remaining() < FrameCodec.MAGIC.length + 1) return;
+        byte[] header = new byte[FrameCodec.MAGIC.length];
+        readBuffer.get(header);
+        if (!Arrays.equals(header, FrameCodec.MAGIC))
+            throw new IOException("Unknown protocol header " + Arrays.toString(header));
+        int phoneVersion = readBuffer.get() & 0xFF;
+        if (phoneVersion < 1) throw new IOException("Unsupported binary protocol version " + phoneVersion);
+        int version = Math.min(phoneVersion, FrameCodec.VERSION);
+        inboundCompressor = new FrameCompressor(version);
+        outboundCompressor = new FrameCompressor(version);
+        codec = new FrameCodec(version, MainEngine.getInstance().getPhotoStore());
+
+        pendingOutput.writeRaw(FrameCodec.MAGIC, 0, FrameCodec.MAGIC.length);
+        pendingOutput.writeByte(version);
+        if (version >= FrameCodec.SESSION_VERSION) enqueue(new SessionStart(outboundQueue.getSessionToken()));
+        if (version >= FrameCodec.PHOTO_VERSION) enqueue(new PhotoDigests(MainEngine.getInstance().getPhotoStore().getHashes()));
+        enqueue(new SyncRequest(MainEngine.getInstance().getSyncWatermarks()));
+        flushOutput();
+        outboundQueue.connectionStarted(version >= FrameCodec.SESSION_VERSION);
+        state = State.BINARY;
+        System.out.println("NioConnection: phone uses " + WireProtocol.BINARY + " protocol");
+        notifyConnected();
+    }
+
+    private boolean readFrame() throws IOException {
+        if (frameType < 0 && !readFrameHeader()) return false;
+        int chunk = Math.min(readBuffer.remaining(), frameLength - frameFilled);
+        readBuffer.get(inboundPayload.array(), frameFilled, chunk);
+        frameFilled += chunk;
+        if (frameFilled < frameLength) return false;
+
+        int type = frameType;
+        frameType = -1;
+        FrameBuffer payload = inboundPayload;
+        long start = System.nanoTime();
+        if ((type & FrameCompressor.COMPRESSED_FLAG) != 0) {
+            inboundCompressor.decompress(inboundPayload, inflatedPayload);
+            payload = inflatedPayload;
+            type &= ~FrameCompressor.COMPRESSED_FLAG;
+        } else {
+            inboundCompressor.recordPlainFrame(frameLength);
+        }
+        Object decoded = codec.decode(type, payload);
+        Metrics.DECODE_LATENCY.record(System.nanoTime() - start);
+        InboundDispatcher.dispatch(decoded, outboundQueue);
+        return true;
+    }
+
+    private boolean readFrameHeader() throws IOException {
+        int index = readBuffer.position();
+        if (index >= readBuffer.limit()) return false;
+        int type = readBuffer.get(index++) & 0xFF;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift >= 35) throw new IOException("Malformed frame length");
+            if (index >= readBuffer.limit()) return false;
+            int b = readBuffer.get(index++) & 0xFF;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        if (length < 0 || length > FrameCodec.MAX_FRAME_SIZE)
+            throw new IOException("Frame size " + length + " exceeds limit");
+        readBuffer.position(index);
+        frameType = type;
+        frameLength = length;
+        frameFilled = 0;
+        inboundPayload.prepareForRead(length);
+        return true;
+    }
+
+    private void enqueue(Object object) throws IOException {
+        outboundPayload.reset();
+        int type = codec.encode(object, outboundPayload);
+        FrameBuffer body = outboundPayload;
+        if (outboundCompressor.compress(outboundPayload, codec.getPhotoBytes(), deflatedPayload)) {
+            type |= FrameCompressor.COMPRESSED_FLAG;
+            body = deflatedPayload;
+        }
+        pendingOutput.writeByte(type);
+        pendingOutput.writeVarInt(body.size());
+        pendingOutput.writeRaw(body.array(), 0, body.size());
+    }
+
+    /**
+     * <p>
+     * Invoked by the fallback receiver when connection handed off to blocking threads breaks. Listening socket is kept
+     * by the event loop, so the phone just connects again.
+     * </p>
+     */
+    private void fallbackBroken() {
+        close();
+        outboundQueue.requeueInFlight();
+        try {
+            MainEngine.getInstance().changeConnectionState(false);
+        } catch (ReferenceNotInitializedException e) {
+        }
+    }
+
+    private void notifyConnected() {
+        try {
+            MainEngine.getInstance().changeConnectionState(true);
+        } catch (ReferenceNotInitializedException e) {
+            System.err.println("NioConnection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stream header was already sent by the event loop, so it must not be written again.
+     */
+    private static class HeaderlessObjectOutputStream extends ObjectOutputStream {
+        HeaderlessObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() {
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package net;
+
+import com.sun.org.apache.xml.internal.security.signature.ReferenceNotInitializedException;
+import engine.MainEngine;
+import informer_api.conversation.Message;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>
+ * Alternative to MessageService that handles accepting, reading and writing on a single event-loop thread using
+ * non-blocking channels. The listening socket stays open for the whole life of the service, so the phone can
+ * disconnect and connect again without any threads being created or the port being bound again.
+ * A newly accepted connection replaces the previous one.
+ * </p>
+ */
+public class NioMessageService extends Thread implements PhoneLink {
+    private static final int BATCH_SIZE = 64;
+    private static final long CANCEL_TIMEOUT_MILLIS = 5000;
+    private volatile boolean shouldWork;
+    private final Selector selector;
+    private final ServerSocketChannel listener;
+    private final OutboundQueue messagesToSend;
+    private NioConnection connection;
+
+    public NioMessageService(int port, OutboundQueue messagesToSend) throws IOException {
+        super("NioMessageService");
+        this.messagesToSend = messagesToSend;
+        shouldWork = true;
+        selector = Selector.open();
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        // Journaled messages become sendable on the commit thread, after sendMessage woke the loop. Waking a closed
+        // selector does nothing, so the listener is simply replaced by the next service.
+        messagesToSend.setSendableListener(selector::wakeup);
+    }
+
+    /**
+     * <p>
+     * Stops the event loop and waits until it closes the listening socket, so that the port can be bound again right
+     * away (the server is restarted that way after a handed off connection breaks).
+     * </p>
+     */
+    @Override
+    public void cancel() {
+        shouldWork = false;
+        selector.wakeup();
+        if (Thread.currentThread() == this || !isAlive()) return;
+        try {
+            join(CANCEL_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean sendMessage(Message message) {
+        boolean accepted = messagesToSend.offer(message);
+        selector.wakeup();
+        return accepted;
+    }
+
+    @Override
+    public void run() {
+        while (shouldWork) {
+            try {
+                // Messages held until the phone resumes its session are released by a timeout as well
+                long resumeDelay = messagesToSend.getResumeDelayMillis();
+                if (resumeDelay > 0) selector.select(resumeDelay);
+                else selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) acceptConnection();
+                    else handleConnection(key);
+                }
+                if (connection != null && connection.isHandingOff()) connection.handOff(selector);
+                sendQueuedMessages();
+            } catch (IOException e) {
+                System.err.println("NioMessageService: " + e.getMessage());
+                if (connection != null) dropConnection();
+            }
+        }
+        if (connection != null) connection.close();
+        messagesToSend.requeueInFlight();
+        try {
+            listener.close();
+            selector.close();
+        } catch (IOException e) {
+        }
+        System.out.println("NioMessageService stopping work, " + messagesToSend);
+    }
+
+    private void acceptConnection() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) return;
+        if (connection != null) {
+            System.out.println("NioMessageService: new connection replaces the previous one");
+            connection.close();
+            messagesToSend.requeueInFlight();
+        }
+        connection = new NioConnection(channel, selector, messagesToSend);
+    }
+
+    private void handleConnection(SelectionKey key) {
+        NioConnection handled = (NioConnection) key.attachment();
+        try {
+            if (key.isReadable()) handled.read();
+            if (key.isValid() && key.isWritable()) handled.flushOutput();
+        } catch (IOException e) {
+            System.err.println("NioMessageService: " + e.getMessage());
+            if (handled == connection) dropConnection();
+            else handled.close();
+        }
+    }
+
+    private void sendQueuedMessages() {
+        // Connections handed off to blocking threads take messages from the queue on their own
+        if (connection == null || !connection.canTakeMessages()) return;
+        List<OutboundMessage> batch = messagesToSend.pollBatch(BATCH_SIZE);
+        if (batch.isEmpty()) return;
+        try {
+            for (OutboundMessage m : batch) connection.send(m);
+            connection.flushOutput();
+        } catch (IOException e) {
+            System.err.println("NioMessageService: " + e.getMessage());
+            messagesToSend.returnUnsent(batch);
+            dropConnection();
+        }
+    }
+
+    private void dropConnection() {
+        connection.close();
+        connection = null;
+        messagesToSend.requeueInFlight();
+        try {
+            MainEngine.getInstance().changeConnectionState(false);
+        } catch (ReferenceNotInitializedException e) {
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package net;
+
+import informer_api.conversation.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * <p>
+ * Write-ahead log of OutboundQueue, so that messages waiting for the phone survive restart of the application.
+ * </p>
+ * <p>
+ * Log holds the session token, every queued message and acknowledgment of every delivered one. Records are prefixed
+ * with their length and CRC32 checksum like in MessageStore, and reading stops at the first incomplete or corrupted
+ * one, which is cut off. Messages queued but not acknowledged are read back when the log is opened, with their
+ * original sequence numbers.
+ * </p>
+ * <p>
+ * Appending only copies the record to a buffer. Commit thread writes everything buffered in the meantime and forces it
+ * to disk at once (group commit), then tells the queue which messages are durable, so high send rates need few
+ * fsyncs while no message is sent before it is logged. Acknowledgments are committed along, losing them only means
+ * that the phone gets the message again and drops it. Once the log grows past COMPACT_SIZE and holds mostly
+ * acknowledged messages, it is rewritten with pending messages only.
+ * </p>
+ */
+class OutboundJournal implements Closeable {
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final int VERSION = 1;
+    private static final byte HEADER = 0;
+    private static final byte QUEUED = 1;
+    private static final byte ACKNOWLEDGED = 2;
+    private static final long COMPACT_SIZE = 256 * 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final File file;
+    private final Map<Long, Message> pending = new LinkedHashMap<>();
+    private final CRC32 checksum = new CRC32();
+    private final RecordBuffer buffered = new RecordBuffer();
+    private final DataOutputStream bufferedOut = new DataOutputStream(buffered);
+    private final RecordBuffer bodyBytes = new RecordBuffer();
+    private final DataOutputStream bodyOut = new DataOutputStream(bodyBytes);
+    private final Thread committer;
+    private FileChannel channel;
+    private long sessionToken;
+    private long lastId;
+    private long loggedId;
+    private long records;
+    private LongConsumer commitListener = id -> {
+    };
+    private boolean closed;
+
+    /**
+     * <p>
+     * Opens log kept in the provided file, creating it if needed, and reads messages that were not acknowledged.
+     * </p>
+     *
+     * @param file - log file
+     * @return opened log
+     * @throws IOException - if log could not be opened
+     */
+    static OutboundJournal open(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory " + directory);
+        return new OutboundJournal(file);
+    }
+
+    private OutboundJournal(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
+        replay();
+        loggedId = lastId;
+        committer = new Thread(this::commitLoop, "OutboundJournal commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    synchronized long getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * @return the highest sequence number ever logged, 0 if there was none
+     */
+    synchronized long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * @return messages that were logged but not acknowledged, in order
+     */
+    synchronized List<OutboundMessage> getPending() {
+        List<OutboundMessage> messages = new ArrayList<>(pending.size());
+        for (Map.Entry<Long, Message> entry : pending.entrySet())
+            messages.add(new OutboundMessage(entry.getKey(), entry.getValue()));
+        return messages;
+    }
+
+    /**
+     * @param listener - invoked by the commit thread with the highest sequence number that is durable
+     */
+    synchronized void setCommitListener(LongConsumer listener) {
+        commitListener = listener;
+    }
+
+    /**
+     * <p>
+     * Buffers record of a queued message. It is durable once the commit listener receives its sequence number.
+     * </p>
+     *
+     * @param message - queued message
+     */
+    synchronized void logQueued(OutboundMessage message) {
+        try {
+            bodyOut.writeByte(QUEUED);
+            bodyOut.writeLong(message.getId());
+            writeString(message.getMessage().getNumber());
+            writeString(message.getMessage().getText());
+            finishRecord(bufferedOut);
+        } catch (IOException e) {
+            // Writes to a byte array do not fail
+        }
+        pending.put(message.getId(), message.getMessage());
+        lastId = Math.max(lastId, message.getId());
+        loggedId = Math.max(loggedId, message.getId());
+        notifyAll();
+    }
+
+    /**
+     * <p>
+     * Buffers record of a message that was delivered and does not have to be sent again.
+     * </p>
+     *
+     * @param id - sequence number of the message
+     */
+    synchronized void logAcknowledged(long id) {
+        if (pending.remove(id) == null) return;
+        try {
+            bodyOut.writeByte(ACKNOWLEDGED);
+            bodyOut.writeLong(id);
+            finishRecord(bufferedOut);
+        } catch (IOException e) {
+        }
+        notifyAll();
+    }
+
+    /**
+     * <p>
+     * Commits buffered records and closes the log.
+     * </p>
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            ByteBuffer batch = null;
+            long durableId;
+            LongConsumer listener;
+            synchronized (this) {
+                try {
+                    while (buffered.size() == 0 && !closed) wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (buffered.size() == 0) return;
+                durableId = loggedId;
+                listener = commitListener;
+                if (channelSize() > COMPACT_SIZE && records > 2 * pending.size()) {
+                    compact();
+                } else {
+                    batch = ByteBuffer.wrap(Arrays.copyOf(buffered.array(), buffered.size()));
+                    buffered.reset();
+                }
+            }
+            if (batch != null) {
+                try {
+                    while (batch.hasRemaining()) channel.write(batch, channel.size());
+                    channel.force(false);
+                } catch (IOException e) {
+                    // Messages are still sent, they only will not survive a restart
+                    System.err.println("OutboundJournal commit: " + e.getMessage());
+                }
+            }
+            listener.accept(durableId);
+        }
+    }
+
+    /**
+     * Rewrites the log with the header and pending messages only, buffered records included. Invoked under the lock.
+     */
+    private void compact() {
+        File compacted = new File(file.getPath() + ".tmp");
+        try (FileChannel target = FileChannel.open(compacted.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+            buffered.reset();
+            records = 0;
+            writeHeader();
+            for (Map.Entry<Long, Message> entry : pending.entrySet()) {
+                bodyOut.writeByte(QUEUED);
+                bodyOut.writeLong(entry.getKey());
+                writeString(entry.getValue().getNumber());
+                writeString(entry.getValue().getText());
+                finishRecord(bufferedOut);
+            }
+            ByteBuffer content = ByteBuffer.wrap(buffered.array(), 0, buffered.size());
+            while (content.hasRemaining()) target.write(content);
+            target.force(false);
+            buffered.reset();
+            channel.close();
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file.toPath(), READ, WRITE);
+        } catch (IOException e) {
+            System.err.println("OutboundJournal could not compact the log: " + e.getMessage());
+            try {
+                if (!channel.isOpen()) channel = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
+            } catch (IOException reopenError) {
+                System.err.println("OutboundJournal: " + reopenError.getMessage());
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        long position = 0;
+        ByteBuffer body;
+        while ((body = readRecord(position)) != null) {
+            position += RECORD_HEADER_SIZE + body.capacity();
+            records++;
+            byte type = body.get();
+            if (type == HEADER) {
+                if (body.getInt() != VERSION) throw new IOException("Unsupported outbound journal version");
+                sessionToken = body.getLong();
+            } else if (type == QUEUED) {
+                long id = body.getLong();
+                String number = readString(body);
+                pending.put(id, new Message(number, readString(body)));
+                lastId = Math.max(lastId, id);
+            } else if (type == ACKNOWLEDGED) {
+                pending.remove(body.getLong());
+            }
+        }
+        if (position < channel.size()) {
+            System.err.println("OutboundJournal: dropping incomplete record at " + position);
+            channel.truncate(position);
+        }
+        if (position == 0) {
+            sessionToken = new SecureRandom().nextLong() & Long.MAX_VALUE;
+            writeHeader();
+            ByteBuffer header = ByteBuffer.wrap(Arrays.copyOf(buffered.array(), buffered.size()));
+            buffered.reset();
+            while (header.hasRemaining()) channel.write(header, channel.size());
+            channel.force(false);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        bodyOut.writeByte(HEADER);
+        bodyOut.writeInt(VERSION);
+        bodyOut.writeLong(sessionToken);
+        finishRecord(bufferedOut);
+    }
+
+    private long channelSize() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Moves record body to the output, prefixed with its length and checksum.
+     */
+    private void finishRecord(DataOutputStream out) throws IOException {
+        checksum.reset();
+        checksum.update(bodyBytes.array(), 0, bodyBytes.size());
+        out.writeInt(bodyBytes.size());
+        out.writeInt((int) checksum.getValue());
+        out.write(bodyBytes.array(), 0, bodyBytes.size());
+        bodyBytes.reset();
+        records++;
+    }
+
+    private void writeString(String text) throws IOException {
+        if (text == null) {
+            bodyOut.writeInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        bodyOut.writeInt(bytes.length);
+        bodyOut.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads body of a record, returning null if it is incomplete or corrupted.
+     */
+    private ByteBuffer readRecord(long position) throws IOException {
+        if (position + RECORD_HEADER_SIZE > channel.size()) return null;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, position);
+        int length = header.getInt(0);
+        if (length <= 0 || length > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + length > channel.size())
+            return null;
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(body, position + RECORD_HEADER_SIZE);
+        checksum.reset();
+        checksum.update(body.array(), 0, length);
+        if ((int) checksum.getValue() != header.getInt(4)) return null;
+        body.rewind();
+        return body;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of outbound journal");
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OutboundJournal[pending=" + pending.size() + ", records=" + records + ", bytes=" + channelSize() + "]";
+    }
+
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+}
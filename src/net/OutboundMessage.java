@@ -0,0 +1,32 @@
+package net;
+
+import informer_api.conversation.Message;
+
+/**
+ * <p>
+ * Message waiting in OutboundQueue together with its sequence number used for acknowledgments.
+ * </p>
+ */
+class OutboundMessage {
+    private final long id;
+    private final Message message;
+    private final long enqueuedAt;
+
+    OutboundMessage(long id, Message message) {
+        this.id = id;
+        this.message = message;
+        this.enqueuedAt = System.nanoTime();
+    }
+
+    long getId() {
+        return id;
+    }
+
+    Message getMessage() {
+        return message;
+    }
+
+    long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+}
@@ -0,0 +1,373 @@
+package net;
+
+import informer_api.conversation.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Bounded queue of messages waiting to be sent to the phone. It outlives single connections, so messages queued while
+ * the phone is disconnected are sent once it connects again.
+ * </p>
+ * <p>
+ * Messages are taken in batches by the transport. Taken messages become in-flight right away, before they are
+ * written, so an acknowledgment is never lost even if it comes back before the writing thread returns. Phones using
+ * binary protocol acknowledge every message, so until that happens messages are kept as in-flight and are put back in
+ * front of the queue if the connection breaks. Both
+ * queued and in-flight messages count towards the capacity, so a phone that stops responding causes backpressure
+ * instead of unbounded memory growth.
+ * </p>
+ * <p>
+ * Sequence numbers are unique for the whole life of the queue, so the queue also defines the session that phones
+ * using protocol version 3 resume after reconnecting: they present the session token and the last sequence number
+ * they received, and only messages after it are sent again, see resume. Phone resumes the session only after the
+ * handshake, so messages put back after a broken connection are held until it does, or until RESUME_TIMEOUT passes,
+ * see connectionStarted.
+ * </p>
+ * <p>
+ * Queue opened with a file keeps OutboundJournal in it, and continues the session (token, sequence numbers and
+ * pending messages) after the application restarts. New messages are not handed to the transport until the journal
+ * commits them, and are forgotten only when the phone acknowledges them. Transports that do not wait on the queue
+ * learn about committed messages from the sendable listener.
+ * </p>
+ */
+public class OutboundQueue {
+    public static final int DEFAULT_CAPACITY = 1000;
+    private static final long RESUME_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private final int capacity;
+    private final ArrayDeque<OutboundMessage> queue = new ArrayDeque<>();
+    private final ArrayDeque<OutboundMessage> uncommitted = new ArrayDeque<>();
+    private final LinkedHashMap<Long, OutboundMessage> inFlight = new LinkedHashMap<>();
+    private final OutboundJournal journal;
+    private final long sessionToken;
+    private long nextId = 1;
+    private long acknowledgedCount;
+    private long totalLatency;
+    private long maxLatency;
+    private boolean mayBeDelivered;
+    private long resumeDeadline;
+    private Runnable sendableListener = () -> {
+    };
+
+    /**
+     * <p>
+     * Creates queue kept in memory only.
+     * </p>
+     *
+     * @param capacity - maximal number of pending messages
+     */
+    public OutboundQueue(int capacity) {
+        this.capacity = capacity;
+        journal = null;
+        sessionToken = new SecureRandom().nextLong() & Long.MAX_VALUE;
+    }
+
+    private OutboundQueue(int capacity, OutboundJournal journal) {
+        this.capacity = capacity;
+        this.journal = journal;
+        sessionToken = journal.getSessionToken();
+        nextId = journal.getLastId() + 1;
+        queue.addAll(journal.getPending());
+        // Messages pending at exit may have reached the phone before it acknowledged them
+        mayBeDelivered = !queue.isEmpty();
+        journal.setCommitListener(this::committed);
+    }
+
+    /**
+     * <p>
+     * Opens queue logged to the provided file, with messages that were still pending when it was last closed.
+     * </p>
+     *
+     * @param capacity - maximal number of pending messages, pending messages read from the file may exceed it
+     * @param file     - journal file, created if needed
+     * @return opened queue
+     * @throws IOException - if journal could not be opened
+     */
+    public static OutboundQueue open(int capacity, File file) throws IOException {
+        return new OutboundQueue(capacity, OutboundJournal.open(file));
+    }
+
+    /**
+     * @param listener - invoked by the commit thread of the journal when committed messages can be taken
+     */
+    public synchronized void setSendableListener(Runnable listener) {
+        sendableListener = listener;
+    }
+
+    /**
+     * <p>
+     * Adds message to the end of the queue.
+     * </p>
+     *
+     * @param message - message to send
+     * @return false if queue is full and message was not added
+     */
+    public synchronized boolean offer(Message message) {
+        if (getPendingCount() >= capacity) return false;
+        OutboundMessage queued = new OutboundMessage(nextId++, message);
+        if (journal == null) {
+            queue.add(queued);
+            notifyAll();
+        } else {
+            uncommitted.add(queued);
+            journal.logQueued(queued);
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Returns number of messages that were not yet sent or acknowledged.
+     * </p>
+     *
+     * @return number of pending messages
+     */
+    public synchronized int getPendingCount() {
+        return uncommitted.size() + queue.size() + inFlight.size();
+    }
+
+    public synchronized long getAcknowledgedCount() {
+        return acknowledgedCount;
+    }
+
+    /**
+     * <p>
+     * Returns average time between queueing a message and receiving its acknowledgment.
+     * </p>
+     *
+     * @return latency in milliseconds
+     */
+    public synchronized double getAverageLatency() {
+        return acknowledgedCount == 0 ? 0 : totalLatency / 1e6 / acknowledgedCount;
+    }
+
+    /**
+     * <p>
+     * Returns the longest time between queueing a message and receiving its acknowledgment.
+     * </p>
+     *
+     * @return latency in milliseconds
+     */
+    public synchronized double getMaxLatency() {
+        return maxLatency / 1e6;
+    }
+
+    /**
+     * <p>
+     * Blocks until at least one message is available and takes up to maxSize messages from the queue. Taken messages
+     * are in-flight until they are acknowledged or returned.
+     * </p>
+     *
+     * @param maxSize - maximal batch size
+     * @return messages to send, in order
+     * @throws InterruptedException - if waiting thread was interrupted
+     */
+    synchronized List<OutboundMessage> takeBatch(int maxSize) throws InterruptedException {
+        while (queue.isEmpty() || awaitingResume()) {
+            if (resumeDeadline == 0) wait();
+            else TimeUnit.NANOSECONDS.timedWait(this, resumeDeadline - System.nanoTime());
+        }
+        return pollBatch(maxSize);
+    }
+
+    /**
+     * <p>
+     * Takes up to maxSize messages from the queue without waiting. Taken messages are in-flight until they are
+     * acknowledged or returned.
+     * </p>
+     *
+     * @param maxSize - maximal batch size
+     * @return messages to send in order, possibly empty
+     */
+    synchronized List<OutboundMessage> pollBatch(int maxSize) {
+        if (awaitingResume()) return new ArrayList<>();
+        List<OutboundMessage> batch = new ArrayList<>(Math.min(maxSize, queue.size()));
+        while (batch.size() < maxSize && !queue.isEmpty()) {
+            OutboundMessage message = queue.poll();
+            inFlight.put(message.getId(), message);
+            batch.add(message);
+        }
+        return batch;
+    }
+
+    /**
+     * <p>
+     * Marks batch as written to a connection that does not acknowledge messages, so they are forgotten right away.
+     * Messages written to connections that acknowledge them stay in-flight.
+     * </p>
+     *
+     * @param batch - written messages
+     */
+    synchronized void markDelivered(List<OutboundMessage> batch) {
+        for (OutboundMessage m : batch) {
+            if (inFlight.remove(m.getId()) != null && journal != null) journal.logAcknowledged(m.getId());
+        }
+    }
+
+    /**
+     * <p>
+     * Puts messages that could not be written back in front of the queue, keeping their order. Messages that were
+     * acknowledged or already put back by requeueInFlight in the meantime are skipped.
+     * </p>
+     *
+     * @param batch - messages taken from the queue
+     */
+    synchronized void returnUnsent(List<OutboundMessage> batch) {
+        boolean returned = false;
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            OutboundMessage message = batch.get(i);
+            if (inFlight.remove(message.getId()) == null) continue;
+            queue.addFirst(message);
+            returned = true;
+        }
+        if (returned) {
+            // Messages could have reached the phone before the connection broke
+            mayBeDelivered = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * <p>
+     * Removes acknowledged message from in-flight messages and records its latency.
+     * </p>
+     *
+     * @param id - message sequence number
+     */
+    synchronized void acknowledge(long id) {
+        OutboundMessage message = inFlight.remove(id);
+        if (message == null) return;
+        if (journal != null) journal.logAcknowledged(id);
+        long latency = System.nanoTime() - message.getEnqueuedAt();
+        acknowledgedCount++;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+    }
+
+    /**
+     * @return token of the session, sent to phones in SessionStart
+     */
+    long getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * <p>
+     * Resumes session of a reconnected phone: messages it already received are treated as acknowledged, both those
+     * still waiting for acknowledgment and those already put back in the queue.
+     * </p>
+     *
+     * @param token          - session token presented by the phone
+     * @param lastReceivedId - sequence number of the last message received by the phone
+     * @return number of messages that will not be sent again, -1 if the token does not match this session
+     */
+    synchronized int resume(long token, long lastReceivedId) {
+        releaseHeldMessages();
+        if (token != sessionToken) return -1;
+        return removeDelivered(inFlight.values().iterator(), lastReceivedId) +
+                removeDelivered(queue.iterator(), lastReceivedId);
+    }
+
+    /**
+     * <p>
+     * Invoked by the transport once handshake of a new connection completes, before any message is taken. If the phone
+     * can resume the session and some messages were put back after the previous connection broke, no message is taken
+     * until the phone resumes the session or RESUME_TIMEOUT passes, so messages it already received are not sent
+     * again.
+     * </p>
+     *
+     * @param resumable - true if the negotiated protocol supports session resumption
+     */
+    synchronized void connectionStarted(boolean resumable) {
+        if (resumable && mayBeDelivered) resumeDeadline = System.nanoTime() + RESUME_TIMEOUT_NANOS;
+        else releaseHeldMessages();
+    }
+
+    /**
+     * @return milliseconds left until held messages are released without resume, 0 if none are held
+     */
+    synchronized long getResumeDelayMillis() {
+        return awaitingResume() ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(resumeDeadline - System.nanoTime())) : 0;
+    }
+
+    private boolean awaitingResume() {
+        if (resumeDeadline == 0) return false;
+        if (System.nanoTime() - resumeDeadline < 0) return true;
+        releaseHeldMessages();
+        return false;
+    }
+
+    private void releaseHeldMessages() {
+        mayBeDelivered = false;
+        if (resumeDeadline == 0) return;
+        resumeDeadline = 0;
+        notifyAll();
+    }
+
+    private int removeDelivered(Iterator<OutboundMessage> messages, long lastReceivedId) {
+        int delivered = 0;
+        while (messages.hasNext()) {
+            OutboundMessage message = messages.next();
+            if (message.getId() <= lastReceivedId) {
+                messages.remove();
+                if (journal != null) journal.logAcknowledged(message.getId());
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * <p>
+     * Hands messages committed by the journal to the transport. Invoked by the commit thread of the journal.
+     * </p>
+     *
+     * @param lastCommittedId - sequence number of the last durable message
+     */
+    private void committed(long lastCommittedId) {
+        Runnable listener;
+        synchronized (this) {
+            boolean added = false;
+            while (!uncommitted.isEmpty() && uncommitted.peek().getId() <= lastCommittedId) {
+                queue.add(uncommitted.poll());
+                added = true;
+            }
+            if (!added) return;
+            notifyAll();
+            listener = sendableListener;
+        }
+        listener.run();
+    }
+
+    /**
+     * <p>
+     * Commits the journal and closes it. Pending messages are sent after the queue is opened again.
+     * </p>
+     */
+    public void close() {
+        if (journal != null) journal.close();
+    }
+
+    /**
+     * <p>
+     * Puts every message that was sent but not acknowledged back in front of the queue. Invoked when connection breaks.
+     * </p>
+     */
+    synchronized void requeueInFlight() {
+        returnUnsent(new ArrayList<>(inFlight.values()));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("OutboundQueue[queued=%d, inFlight=%d, acknowledged=%d, avgLatency=%.1fms, maxLatency=%.1fms]",
+                uncommitted.size() + queue.size(), inFlight.size(), acknowledgedCount, getAverageLatency(), getMaxLatency());
+    }
+}
@@ -0,0 +1,35 @@
+package net;
+
+import informer_api.conversation.Message;
+
+/**
+ * <p>
+ * Server side of the connection with the phone. Implementations differ in how sockets are handled,
+ * see TransportMode.
+ * </p>
+ */
+public interface PhoneLink {
+    /**
+     * <p>
+     * Starts listening for the phone connection in the background.
+     * </p>
+     */
+    void start();
+
+    /**
+     * <p>
+     * Cancels work, stops all threads and exits.
+     * </p>
+     */
+    void cancel();
+
+    /**
+     * <p>
+     * Queues message for sending to phone. Messages queued while phone is disconnected are sent after it connects.
+     * </p>
+     *
+     * @param message - message to send
+     * @return false if outbound queue is full and message was rejected
+     */
+    boolean sendMessage(Message message);
+}
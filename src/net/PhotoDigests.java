@@ -0,0 +1,19 @@
+package net;
+
+/**
+ * <p>
+ * Sent to the phone right after handshake (protocol version 4 and newer), before SyncRequest, with hashes of all photos
+ * held by the PC. Phone sends photos with these hashes as references only, see FrameCodec.
+ * </p>
+ */
+class PhotoDigests {
+    private final long[] hashes;
+
+    PhotoDigests(long[] hashes) {
+        this.hashes = hashes;
+    }
+
+    long[] getHashes() {
+        return hashes;
+    }
+}
@@ -0,0 +1,41 @@
+package net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+
+/**
+ * <p>
+ * Fallback decoder using plain Java serialization, kept for phones that do not speak the binary protocol.
+ * </p>
+ */
+class SerializationDecoder implements MessageDecoder {
+    private final ObjectInputStream inStream;
+
+    SerializationDecoder(InputStream stream) throws IOException {
+        inStream = new ObjectInputStream(stream);
+    }
+
+    @Override
+    public Object read() throws IOException {
+        try {
+            return inStream.readObject();
+        } catch (ClassNotFoundException e) {
+            System.err.println("SerializationDecoder: unknown class " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SerializationDecoder";
+    }
+
+    @Override
+    public void close() {
+        try {
+            inStream.close();
+        } catch (IOException e) {
+        }
+    }
+}
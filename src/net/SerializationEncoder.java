@@ -0,0 +1,53 @@
+package net;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * <p>
+ * Fallback encoder using plain Java serialization, kept for phones that do not speak the binary protocol.
+ * </p>
+ */
+class SerializationEncoder implements MessageEncoder {
+    private final ObjectOutputStream outStream;
+
+    SerializationEncoder(ObjectOutputStream outStream) {
+        this.outStream = outStream;
+    }
+
+    @Override
+    public void write(Object object) throws IOException {
+        if (object instanceof OutboundMessage) object = ((OutboundMessage) object).getMessage();
+        outStream.writeObject(object);
+    }
+
+    @Override
+    public boolean expectsAcknowledgments() {
+        return false;
+    }
+
+    /**
+     * <p>
+     * Flushes the stream and resets its handle table, so that objects sent in previous batches can be garbage
+     * collected on both sides.
+     * </p>
+     */
+    @Override
+    public void flush() throws IOException {
+        outStream.reset();
+        outStream.flush();
+    }
+
+    @Override
+    public String toString() {
+        return "SerializationEncoder";
+    }
+
+    @Override
+    public void close() {
+        try {
+            outStream.close();
+        } catch (IOException e) {
+        }
+    }
+}
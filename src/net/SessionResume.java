@@ -0,0 +1,25 @@
+package net;
+
+/**
+ * <p>
+ * Sent by the phone after it reconnected, with token received in SessionStart and sequence number of the last
+ * message it received from the PC. Messages up to that number are not sent again.
+ * </p>
+ */
+class SessionResume {
+    private final long token;
+    private final long lastReceivedId;
+
+    SessionResume(long token, long lastReceivedId) {
+        this.token = token;
+        this.lastReceivedId = lastReceivedId;
+    }
+
+    long getToken() {
+        return token;
+    }
+
+    long getLastReceivedId() {
+        return lastReceivedId;
+    }
+}
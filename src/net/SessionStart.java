@@ -0,0 +1,19 @@
+package net;
+
+/**
+ * <p>
+ * Sent to the phone right after handshake (protocol version 3 and newer) with token of the session. Phone presents
+ * the token in SessionResume after it reconnects.
+ * </p>
+ */
+class SessionStart {
+    private final long token;
+
+    SessionStart(long token) {
+        this.token = token;
+    }
+
+    long getToken() {
+        return token;
+    }
+}
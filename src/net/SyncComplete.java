@@ -0,0 +1,13 @@
+package net;
+
+/**
+ * <p>
+ * Marker sent by the phone after the last SyncDelta.
+ * </p>
+ */
+class SyncComplete {
+    static final SyncComplete INSTANCE = new SyncComplete();
+
+    private SyncComplete() {
+    }
+}
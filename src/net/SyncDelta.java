@@ -0,0 +1,20 @@
+package net;
+
+import informer_api.conversation.Conversation;
+
+/**
+ * <p>
+ * Messages missing on the PC for a single conversation, sent by the phone in response to SyncRequest.
+ * </p>
+ */
+class SyncDelta {
+    private final Conversation conversation;
+
+    SyncDelta(Conversation conversation) {
+        this.conversation = conversation;
+    }
+
+    Conversation getConversation() {
+        return conversation;
+    }
+}
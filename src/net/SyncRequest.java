@@ -0,0 +1,23 @@
+package net;
+
+import engine.Watermark;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * Request sent to the phone right after handshake, announcing which messages are already stored on the PC.
+ * Phone responds with SyncDelta objects carrying only missing messages, followed by SyncComplete.
+ * </p>
+ */
+class SyncRequest {
+    private final Map<String, Watermark> watermarks;
+
+    SyncRequest(Map<String, Watermark> watermarks) {
+        this.watermarks = watermarks;
+    }
+
+    Map<String, Watermark> getWatermarks() {
+        return watermarks;
+    }
+}
@@ -0,0 +1,47 @@
+package net;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Available implementations of the phone link.
+ * </p>
+ */
+public enum TransportMode {
+    /**
+     * Blocking sockets with separate sender and receiver threads, see MessageService.
+     */
+    BLOCKING,
+    /**
+     * Single event-loop thread with non-blocking channels, see NioMessageService.
+     */
+    NIO;
+
+    /**
+     * <p>
+     * Creates phone link listening on the provided port.
+     * </p>
+     *
+     * @param port          - port to listen on
+     * @param outboundQueue - queue of messages to send, shared between consecutive links
+     * @return link that has to be started
+     * @throws IOException - if port could not be bound
+     */
+    public PhoneLink open(int port, OutboundQueue outboundQueue) throws IOException {
+        return this == NIO ? new NioMessageService(port, outboundQueue) : new MessageService(port, outboundQueue);
+    }
+
+    /**
+     * <p>
+     * Returns transport mode with the provided name, ignoring case.
+     * </p>
+     *
+     * @param name - mode name, may be null
+     * @return matching mode or BLOCKING if name is not recognized
+     */
+    public static TransportMode fromName(String name) {
+        for (TransportMode mode : values())
+            if (mode.name().equalsIgnoreCase(name)) return mode;
+        return BLOCKING;
+    }
+}
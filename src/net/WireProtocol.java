@@ -0,0 +1,17 @@
+package net;
+
+/**
+ * <p>
+ * Wire protocols understood by the server. The one used for a connection is picked during handshake.
+ * </p>
+ */
+enum WireProtocol {
+    /**
+     * Compact length-prefixed frames, see FrameCodec.
+     */
+    BINARY,
+    /**
+     * Plain Java serialization of informer_api objects, used by older phones.
+     */
+    SERIALIZATION
+}